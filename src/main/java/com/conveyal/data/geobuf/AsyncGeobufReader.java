@@ -0,0 +1,267 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Read a geobuf file with I/O, parsing and geometry decoding overlapped.
+ *
+ * The file is read with an AsynchronousFileChannel, and the next chunk is always being read while the current one is
+ * parsed. A splitter thread separates the stream into batches of undecoded features, which are decoded into
+ * GeobufFeatures on worker threads. Decoded batches are handed back in file order through a bounded queue, so the
+ * splitter stops reading when the consumer falls behind.
+ *
+ * This class is an iterator and should be used from a single thread; close it if it is not read to the end.
+ */
+public class AsyncGeobufReader implements Iterator<GeobufFeature>, Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /** Default number of batches that may be read ahead of the consumer */
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    /** marks the end of the queue */
+    private static final Future<List<GeobufFeature>> END = CompletableFuture.completedFuture(Collections.emptyList());
+
+    private final AsynchronousFileChannel channel;
+
+    private final ExecutorService workers;
+
+    /** whether the worker pool was created here and should be shut down on close */
+    private final boolean ownWorkers;
+
+    private final GeometryFactory geometryFactory;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Future<List<GeobufFeature>>> queue;
+
+    private final Thread splitter;
+
+    private Iterator<GeobufFeature> currentBatch = Collections.emptyIterator();
+
+    private boolean done = false;
+
+    private volatile boolean closed = false;
+
+    public AsyncGeobufReader (File file) throws IOException {
+        this(file, null, DEFAULT_CHUNK_SIZE, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_SIZE, null);
+    }
+
+    /**
+     * Create a reader. Features are decoded on the given executor, or on a pool with a thread per processor if it is null.
+     * Geometries are created with the given factory, or the default if it is null.
+     */
+    public AsyncGeobufReader (File file, ExecutorService workers, int chunkSize, int batchSize, int queueSize,
+                              GeometryFactory geometryFactory) throws IOException {
+        this.channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.ownWorkers = workers == null;
+        this.workers = ownWorkers ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : workers;
+        this.batchSize = batchSize;
+        this.geometryFactory = geometryFactory;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        InputStream is = new BufferedInputStream(new ReadAheadInputStream(channel, chunkSize), chunkSize);
+        this.splitter = new Thread(() -> split(is), "geobuf-splitter-" + file.getName());
+        this.splitter.setDaemon(true);
+        this.splitter.start();
+    }
+
+    /** Divide the stream into batches of features, and queue them for decoding */
+    private void split (InputStream is) {
+        try {
+            GeobufDecoder decoder = new GeobufDecoder(is);
+            List<String> keys = Collections.emptyList();
+            List<Geobuf.Data.Feature> batch = new ArrayList<>(batchSize);
+            double precisionDivisor = decoder.precisionDivisor;
+            int dimensions = decoder.dimensions;
+
+            for (Geobuf.Data.Feature raw = decoder.peekRaw(); raw != null && !closed; raw = decoder.peekRaw()) {
+                // keys are only ever appended, but precision and dimensions may differ between fragments
+                if (decoder.precisionDivisor != precisionDivisor || decoder.dimensions != dimensions) {
+                    submit(batch, keys, precisionDivisor, dimensions);
+                    batch = new ArrayList<>(batchSize);
+                    precisionDivisor = decoder.precisionDivisor;
+                    dimensions = decoder.dimensions;
+                }
+
+                if (decoder.keys.size() != keys.size()) keys = new ArrayList<>(decoder.keys);
+
+                batch.add(raw);
+
+                if (batch.size() == batchSize) {
+                    submit(batch, keys, precisionDivisor, dimensions);
+                    batch = new ArrayList<>(batchSize);
+                }
+
+                decoder.skip();
+            }
+
+            submit(batch, keys, precisionDivisor, dimensions);
+            decoder.close();
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Exception e) {
+            CompletableFuture<List<GeobufFeature>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                queue.put(failed);
+            } catch (InterruptedException ie) {
+                // closed
+            }
+        }
+    }
+
+    private void submit (List<Geobuf.Data.Feature> batch, List<String> keys, double precisionDivisor, int dimensions)
+            throws InterruptedException {
+        if (batch.isEmpty() || closed) return;
+
+        // blocks when the consumer is too far behind
+        queue.put(workers.submit(() -> {
+            List<GeobufFeature> decoded = new ArrayList<>(batch.size());
+            for (Geobuf.Data.Feature raw : batch) {
+                decoded.add(geometryFactory == null ?
+                        new GeobufFeature(raw, keys, precisionDivisor, dimensions) :
+                        new GeobufFeature(raw, keys, precisionDivisor, dimensions, geometryFactory));
+            }
+            return decoded;
+        }));
+    }
+
+    @Override public boolean hasNext () {
+        while (!currentBatch.hasNext() && !done) {
+            try {
+                Future<List<GeobufFeature>> next = queue.take();
+                if (next == END) {
+                    done = true;
+                    close();
+                } else {
+                    currentBatch = next.get().iterator();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for features", e);
+            } catch (ExecutionException e) {
+                done = true;
+                closeQuietly();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw new UncheckedIOException((IOException) cause);
+                else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                else throw new RuntimeException(cause);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return currentBatch.hasNext();
+    }
+
+    @Override public GeobufFeature next () {
+        if (!hasNext()) throw new NoSuchElementException();
+        return currentBatch.next();
+    }
+
+    @Override public void close () throws IOException {
+        if (closed) return;
+        closed = true;
+        done = true;
+        currentBatch = Collections.emptyIterator();
+        splitter.interrupt();
+        // don't decode batches that will never be read
+        for (Future<List<GeobufFeature>> batch = queue.poll(); batch != null; batch = queue.poll()) batch.cancel(false);
+        if (ownWorkers) workers.shutdownNow();
+        channel.close();
+    }
+
+    private void closeQuietly () {
+        try {
+            close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+
+    /**
+     * An input stream over an asynchronous file channel that always has a read of the next chunk in flight while the
+     * current chunk is consumed.
+     */
+    static class ReadAheadInputStream extends InputStream {
+        private final AsynchronousFileChannel channel;
+
+        private ByteBuffer current, next;
+
+        private Future<Integer> pending;
+
+        /** file position of the next read to issue */
+        private long position = 0;
+
+        ReadAheadInputStream (AsynchronousFileChannel channel, int chunkSize) {
+            this.channel = channel;
+            this.current = ByteBuffer.allocate(chunkSize);
+            this.current.flip(); // empty
+            this.next = ByteBuffer.allocate(chunkSize);
+            readNext();
+        }
+
+        private void readNext () {
+            next.clear();
+            pending = channel.read(next, position);
+        }
+
+        /** @return false at end of file */
+        private boolean fill () throws IOException {
+            if (pending == null) return false;
+
+            int read;
+            try {
+                read = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+
+            if (read == -1) {
+                pending = null;
+                return false;
+            }
+
+            position += read;
+
+            // swap buffers, and start reading the following chunk into the one just consumed
+            ByteBuffer filled = next;
+            next = current;
+            current = filled;
+            current.flip();
+            readNext();
+            return true;
+        }
+
+        @Override public int read () throws IOException {
+            while (!current.hasRemaining()) {
+                if (!fill()) return -1;
+            }
+            return current.get() & 0xff;
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (!current.hasRemaining()) {
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.conveyal.data.geobuf;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the blocks of a block-compressed geobuf. Each codec has a unique ID which is stored with
+ * every block, so a reader needs to be given any non-built-in codecs used by the writer.
+ */
+public interface BlockCodec {
+    /** ID stored in the block index; 0 - 15 are reserved for built-in codecs */
+    byte id ();
+
+    byte[] compress (byte[] data) throws IOException;
+
+    /** Decompress data which is known to decompress to exactly uncompressedLength bytes */
+    byte[] decompress (byte[] data, int uncompressedLength) throws IOException;
+
+    /** Store blocks uncompressed */
+    BlockCodec NONE = new BlockCodec() {
+        @Override public byte id() {
+            return 0;
+        }
+
+        @Override public byte[] compress(byte[] data) {
+            return data;
+        }
+
+        @Override public byte[] decompress(byte[] data, int uncompressedLength) {
+            return data;
+        }
+    };
+
+    /** Compress blocks with the JDK's Deflate implementation, at the default level */
+    BlockCodec DEFLATE = new BlockCodec() {
+        @Override public byte id() {
+            return 1;
+        }
+
+        @Override public byte[] compress(byte[] data) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+
+                // incompressible data can grow slightly
+                byte[] out = new byte[data.length + data.length / 1000 + 64];
+                int len = 0;
+                while (!deflater.finished()) {
+                    if (len == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    len += deflater.deflate(out, len, out.length - len);
+                }
+                return Arrays.copyOf(out, len);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override public byte[] decompress(byte[] data, int uncompressedLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                byte[] out = new byte[uncompressedLength];
+                int len = 0;
+                while (len < uncompressedLength && !inflater.finished()) {
+                    int read = inflater.inflate(out, len, uncompressedLength - len);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated deflate block");
+                    len += read;
+                }
+                if (len != uncompressedLength)
+                    throw new IOException("Expected " + uncompressedLength + " bytes in block, found " + len);
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+}
@@ -0,0 +1,226 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read a block-compressed geobuf container written by BlockGeobufWriter, decompressing only the blocks that are needed.
+ * Reads use positional FileChannel reads, so a single reader can be used from multiple threads.
+ */
+public class BlockGeobufReader implements Iterable<GeobufFeature>, Closeable {
+    private final FileChannel channel;
+
+    public final List<Block> blocks;
+
+    /** index of the first feature in each block, for finding features by index */
+    private final long[] firstFeature;
+
+    private final Map<Byte, BlockCodec> codecs = new HashMap<>();
+
+    /** Open a container, passing in any codecs other than the built-in ones that were used to write it */
+    public BlockGeobufReader (File file, BlockCodec... extraCodecs) throws IOException {
+        for (BlockCodec codec : new BlockCodec[] { BlockCodec.NONE, BlockCodec.DEFLATE }) codecs.put(codec.id(), codec);
+        for (BlockCodec codec : extraCodecs) codecs.put(codec.id(), codec);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            byte[] magic = new byte[BlockGeobufWriter.MAGIC.length];
+
+            ByteBuffer header = read(0, magic.length + 4);
+            header.get(magic);
+            if (!Arrays.equals(magic, BlockGeobufWriter.MAGIC))
+                throw new IOException(file + " is not a block-compressed geobuf");
+
+            int version = header.getInt();
+            if (version < 1 || version > BlockGeobufWriter.FORMAT_VERSION)
+                throw new IOException("Unsupported block geobuf version " + version);
+
+            ByteBuffer footer = read(channel.size() - 8 - magic.length, 8 + magic.length);
+            long indexOffset = footer.getLong();
+            footer.get(magic);
+            if (!Arrays.equals(magic, BlockGeobufWriter.MAGIC))
+                throw new IOException(file + " is truncated");
+
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                    read(indexOffset, (int) (channel.size() - 8 - magic.length - indexOffset)).array()));
+
+            int blockCount = index.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            firstFeature = new long[blockCount];
+            long featureCount = 0;
+            for (int i = 0; i < blockCount; i++) {
+                Block block = Block.read(index, version);
+                blocks.add(block);
+                firstFeature[i] = featureCount;
+                featureCount += block.featureCount;
+            }
+            this.blocks = Collections.unmodifiableList(blocks);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** @return the total number of features in the file */
+    public long size () {
+        if (blocks.isEmpty()) return 0;
+        return firstFeature[blocks.size() - 1] + blocks.get(blocks.size() - 1).featureCount;
+    }
+
+    /** Decompress and decode a single block */
+    public List<GeobufFeature> readBlock (int blockIdx) throws IOException {
+        return readBlock(blockIdx, null);
+    }
+
+    /** Decompress a single block, and decode the features that match filter, or all features if it is null */
+    public List<GeobufFeature> readBlock (int blockIdx, GeobufFilter filter) throws IOException {
+        Block block = blocks.get(blockIdx);
+        BlockCodec codec = codecs.get(block.codec);
+        if (codec == null) throw new IOException("Unknown codec " + block.codec + " in block " + blockIdx);
+
+        byte[] raw = codec.decompress(read(block.offset, block.compressedLength).array(), block.uncompressedLength);
+
+        List<GeobufFeature> features = new ArrayList<>(block.featureCount);
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(raw), filter);
+        while (decoder.hasNext()) features.add(decoder.next());
+        return features;
+    }
+
+    /**
+     * @return the indices of blocks that might contain features within envelope that match filter, based on their
+     * statistics. Either may be null to match everything. Blocks without statistics are always included.
+     */
+    public List<Integer> candidateBlocks (Envelope envelope, GeobufFilter filter) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            BlockStatistics stats = blocks.get(i).statistics;
+            if (stats != null) {
+                if (envelope != null && !envelope.intersects(stats.envelope)) continue;
+                if (filter != null && !filter.mightMatch(stats)) continue;
+            }
+            candidates.add(i);
+        }
+        return candidates;
+    }
+
+    /**
+     * Find features whose geometry's bounding box intersects envelope and that match filter, either of which may be
+     * null. Only blocks whose statistics might match are decompressed, and within them features that do not match the
+     * filter are not decoded.
+     */
+    public List<GeobufFeature> query (Envelope envelope, GeobufFilter filter) throws IOException {
+        List<Integer> candidates = candidateBlocks(envelope, filter);
+        GeobufMetrics.count(GeobufMetrics.DECODE_BLOCKS_SKIPPED, blocks.size() - candidates.size());
+
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int blockIdx : candidates) {
+            for (GeobufFeature feature : readBlock(blockIdx, filter)) {
+                if (envelope == null ||
+                        feature.geometry != null && envelope.intersects(feature.geometry.getEnvelopeInternal())) {
+                    features.add(feature);
+                }
+            }
+        }
+        return features;
+    }
+
+    /** Get a single feature by its position in the file, decompressing only the block that contains it */
+    public GeobufFeature getFeature (long featureIdx) throws IOException {
+        if (featureIdx < 0 || featureIdx >= size())
+            throw new IndexOutOfBoundsException("Feature " + featureIdx + " not in file of " + size() + " features");
+
+        int blockIdx = Arrays.binarySearch(firstFeature, featureIdx);
+        // not the first feature in a block, binarySearch returns -(insertion point) - 1
+        if (blockIdx < 0) blockIdx = -blockIdx - 2;
+
+        return readBlock(blockIdx).get((int) (featureIdx - firstFeature[blockIdx]));
+    }
+
+    /** Iterate over all features, one block at a time */
+    @Override public Iterator<GeobufFeature> iterator() {
+        return new Iterator<GeobufFeature>() {
+            private int nextBlock = 0;
+            private Iterator<GeobufFeature> current = Collections.emptyIterator();
+
+            @Override public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (nextBlock >= blocks.size()) return false;
+                    try {
+                        current = readBlock(nextBlock++).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override public GeobufFeature next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    private ByteBuffer read (long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException("Unexpected end of file");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+
+    /** An entry in the block index */
+    public static class Block {
+        public final long offset;
+        public final int compressedLength;
+        public final int uncompressedLength;
+        public final int featureCount;
+        public final byte codec;
+
+        /** statistics about the features in this block, or null if none were recorded */
+        public final BlockStatistics statistics;
+
+        Block(long offset, int compressedLength, int uncompressedLength, int featureCount, byte codec,
+              BlockStatistics statistics) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = uncompressedLength;
+            this.featureCount = featureCount;
+            this.codec = codec;
+            this.statistics = statistics;
+        }
+
+        void write (DataOutput out) throws IOException {
+            out.writeLong(offset);
+            out.writeInt(compressedLength);
+            out.writeInt(uncompressedLength);
+            out.writeInt(featureCount);
+            out.writeByte(codec);
+            out.writeBoolean(statistics != null);
+            if (statistics != null) statistics.write(out);
+        }
+
+        static Block read (DataInput in, int version) throws IOException {
+            long offset = in.readLong();
+            int compressedLength = in.readInt();
+            int uncompressedLength = in.readInt();
+            int featureCount = in.readInt();
+            byte codec = in.readByte();
+            // version 1 files have no statistics
+            BlockStatistics statistics = version >= 2 && in.readBoolean() ? BlockStatistics.read(in) : null;
+            return new Block(offset, compressedLength, uncompressedLength, featureCount, codec, statistics);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write a block-compressed geobuf container.
+ *
+ * Compressing a whole geobuf makes it impossible to read part of it without decompressing everything before that part.
+ * This container instead groups features into blocks of a fixed number of features, each stored as a complete,
+ * independently compressed Geobuf.Data message. An index of blocks at the end of the file lets BlockGeobufReader
+ * decompress only the blocks it needs, at the cost of slightly worse compression as each block has its own keys.
+ *
+ * The file layout is:
+ * <pre>
+ *     magic (8 bytes), format version (int)
+ *     compressed blocks
+ *     block count (int), then for each block: offset (long), compressed length (int), uncompressed length (int),
+ *         feature count (int), codec ID (byte), whether there are statistics (boolean), statistics
+ *     index offset (long), magic (8 bytes)
+ * </pre>
+ *
+ * By default the index also holds BlockStatistics for each block (bounding box, numeric ranges and small sets of
+ * distinct strings), which BlockGeobufReader.query uses to skip blocks that cannot match a query without reading them.
+ * Version 1 files, which have no statistics, can still be read.
+ */
+public class BlockGeobufWriter implements Closeable {
+    static final byte[] MAGIC = { 'G', 'E', 'O', 'B', 'U', 'F', 'B', 'K' };
+
+    static final int FORMAT_VERSION = 2;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final DataOutputStream out;
+
+    private final GeobufEncoder encoder;
+
+    private final BlockCodec codec;
+
+    private final int blockSize;
+
+    private final int dimensions;
+
+    /** size of one fixed-point unit in degrees */
+    private final double unit;
+
+    /** current position in the file */
+    private long offset;
+
+    private final List<BlockGeobufReader.Block> blocks = new ArrayList<>();
+
+    private List<Geobuf.Data.Feature> currentFeatures = new ArrayList<>();
+    private List<String> currentKeys = new ArrayList<>();
+
+    private boolean collectStatistics = true;
+    private BlockStatistics currentStatistics = new BlockStatistics();
+
+    public BlockGeobufWriter (OutputStream os, int precision, int dimensions, int blockSize, BlockCodec codec) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(os));
+        this.encoder = new GeobufEncoder(new ByteArrayOutputStream(), precision);
+        this.dimensions = dimensions;
+        this.unit = 1 / Math.pow(10, precision);
+        this.blockSize = blockSize;
+        this.codec = codec;
+
+        out.write(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        offset = MAGIC.length + 4;
+    }
+
+    public BlockGeobufWriter (OutputStream os, int precision) throws IOException {
+        this(os, precision, 2, DEFAULT_BLOCK_SIZE, BlockCodec.DEFLATE);
+    }
+
+    /** Whether to record statistics for each block in the index, true by default. Must be set before adding features. */
+    public void setCollectStatistics (boolean collectStatistics) {
+        if (!currentFeatures.isEmpty() || !blocks.isEmpty())
+            throw new IllegalStateException("Statistics must be enabled or disabled before writing features");
+        this.collectStatistics = collectStatistics;
+        this.currentStatistics = collectStatistics ? new BlockStatistics() : null;
+    }
+
+    public void add (GeobufFeature feature) throws IOException {
+        currentFeatures.add(encoder.makeFeature(feature, currentKeys, dimensions));
+        if (collectStatistics) currentStatistics.add(feature);
+        if (currentFeatures.size() >= blockSize) writeBlock();
+    }
+
+    public void addAll (Iterable<GeobufFeature> features) throws IOException {
+        for (GeobufFeature feature : features) add(feature);
+    }
+
+    private void writeBlock () throws IOException {
+        byte[] raw = encoder.makeFeatureCollection(currentFeatures, currentKeys, dimensions).toByteArray();
+        byte[] compressed = codec.compress(raw);
+
+        out.write(compressed);
+        GeobufMetrics.count(GeobufMetrics.ENCODE_BYTES, compressed.length);
+        // coordinates are rounded when encoded, so decoded features may lie just outside the envelope of the original
+        // geometries; pad it by a whole fixed-point unit, comfortably more than the half unit rounding can move them
+        if (collectStatistics) currentStatistics.envelope.expandBy(unit);
+
+        blocks.add(new BlockGeobufReader.Block(offset, compressed.length, raw.length, currentFeatures.size(), codec.id(),
+                currentStatistics));
+        offset += compressed.length;
+
+        currentFeatures = new ArrayList<>();
+        currentKeys = new ArrayList<>();
+        if (collectStatistics) currentStatistics = new BlockStatistics();
+    }
+
+    /** Write the last block and the index, and close the underlying stream */
+    @Override public void close () throws IOException {
+        if (!currentFeatures.isEmpty()) writeBlock();
+
+        long indexOffset = offset;
+        out.writeInt(blocks.size());
+        for (BlockGeobufReader.Block block : blocks) {
+            block.write(out);
+        }
+
+        out.writeLong(indexOffset);
+        out.write(MAGIC);
+        out.close();
+    }
+}
@@ -0,0 +1,136 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Statistics about the features in one block of a block-compressed geobuf, used to skip blocks that cannot contain
+ * features matching a query: the bounding box of the geometries, and for each property the range of numeric values
+ * and, if there are few enough of them, the set of distinct strings. Booleans are counted as the numbers 0 and 1.
+ */
+public class BlockStatistics {
+    /** Above this many distinct strings, a property's strings are not recorded */
+    public static final int MAX_DISTINCT_STRINGS = 32;
+
+    /** Strings longer than this are not recorded, as they are unlikely to be used in equality filters */
+    public static final int MAX_STRING_LENGTH = 256;
+
+    public final Envelope envelope = new Envelope();
+
+    public final Map<String, Column> columns = new HashMap<>();
+
+    public void add (GeobufFeature feature) {
+        if (feature.geometry != null) envelope.expandToInclude(feature.geometry.getEnvelopeInternal());
+
+        for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+            Object value = e.getValue();
+            if (value == null) continue;
+
+            Column column = columns.computeIfAbsent(e.getKey(), k -> new Column());
+            column.count++;
+
+            if (value instanceof Boolean) column.addNumber((Boolean) value ? 1 : 0);
+            else if (value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float)
+                column.addNumber(((Number) value).doubleValue());
+            // other types, including other numbers such as Short and BigDecimal, are encoded using toString
+            else column.addString(value.toString());
+        }
+    }
+
+    /** Statistics for a single property */
+    public static class Column {
+        /** number of features with a value for this property */
+        public int count;
+
+        /** range of numeric values, NaN if there are none */
+        public double min = Double.NaN, max = Double.NaN;
+
+        /** distinct string values, or null if there are too many to record */
+        public Set<String> strings = new HashSet<>();
+
+        /** whether there are any string values; strings may be null or incomplete even if there are */
+        public boolean hasStrings;
+
+        void addNumber (double value) {
+            if (Double.isNaN(min) || value < min) min = value;
+            if (Double.isNaN(max) || value > max) max = value;
+        }
+
+        void addString (String value) {
+            hasStrings = true;
+            if (strings == null) return;
+
+            if (value.length() > MAX_STRING_LENGTH) strings = null;
+            else {
+                strings.add(value);
+                if (strings.size() > MAX_DISTINCT_STRINGS) strings = null;
+            }
+        }
+
+        /** @return true if a numeric value in this column might be in the range min to max */
+        boolean mightContainNumber (double lower, double upper) {
+            return !Double.isNaN(min) && max >= lower && min <= upper;
+        }
+
+        /** @return true if this column might contain the given string */
+        boolean mightContainString (String value) {
+            return hasStrings && (strings == null || strings.contains(value));
+        }
+    }
+
+    void write (DataOutput out) throws IOException {
+        out.writeBoolean(envelope.isNull());
+        if (!envelope.isNull()) {
+            out.writeDouble(envelope.getMinX());
+            out.writeDouble(envelope.getMaxX());
+            out.writeDouble(envelope.getMinY());
+            out.writeDouble(envelope.getMaxY());
+        }
+
+        out.writeInt(columns.size());
+        for (Map.Entry<String, Column> e : columns.entrySet()) {
+            Column column = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(column.count);
+            out.writeDouble(column.min);
+            out.writeDouble(column.max);
+            out.writeBoolean(column.hasStrings);
+            out.writeInt(column.strings == null ? -1 : column.strings.size());
+            if (column.strings != null) {
+                for (String s : column.strings) out.writeUTF(s);
+            }
+        }
+    }
+
+    static BlockStatistics read (DataInput in) throws IOException {
+        BlockStatistics stats = new BlockStatistics();
+
+        if (!in.readBoolean()) {
+            double minX = in.readDouble(), maxX = in.readDouble(), minY = in.readDouble(), maxY = in.readDouble();
+            stats.envelope.init(minX, maxX, minY, maxY);
+        }
+
+        int columnCount = in.readInt();
+        for (int i = 0; i < columnCount; i++) {
+            String key = in.readUTF();
+            Column column = new Column();
+            column.count = in.readInt();
+            column.min = in.readDouble();
+            column.max = in.readDouble();
+            column.hasStrings = in.readBoolean();
+            int stringCount = in.readInt();
+            if (stringCount == -1) {
+                column.strings = null;
+            } else {
+                for (int j = 0; j < stringCount; j++) column.strings.add(in.readUTF());
+            }
+            stats.columns.put(key, column);
+        }
+
+        return stats;
+    }
+}
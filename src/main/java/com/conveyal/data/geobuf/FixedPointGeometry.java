@@ -0,0 +1,343 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A geometry in the fixed-point integer coordinates it is stored with in a geobuf, i.e. degrees multiplied by
+ * 10^precision, without conversion to floating point.
+ *
+ * Delta coding is undone, so coordinates are absolute. Coordinates are stored interleaved (x, y[, z]) in a single array,
+ * and the structure is described by ring and polygon offsets: ring r is coordinates ringOffsets[r] until
+ * ringOffsets[r + 1], and polygon p is rings polygonOffsets[p] until polygonOffsets[p + 1], the first being the shell.
+ * As in the geobuf, rings are not closed: the last coordinate connects back to the first. A point is a single ring with
+ * a single coordinate.
+ *
+ * Bounding boxes and areas are computed with integer arithmetic, areas in 128 bits so that they cannot overflow even at
+ * the maximum precision. The arrays are exposed for speed and must not be modified.
+ */
+public class FixedPointGeometry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** POINT, POLYGON or MULTIPOLYGON */
+    public final Geobuf.Data.Geometry.Type type;
+
+    /** number of digits after the decimal point */
+    public final int precision;
+
+    public final int dimensions;
+
+    public final long[] coords;
+
+    public final int[] ringOffsets;
+
+    public final int[] polygonOffsets;
+
+    FixedPointGeometry (Geobuf.Data.Geometry.Type type, int precision, int dimensions, long[] coords, int[] ringOffsets,
+                        int[] polygonOffsets) {
+        this.type = type;
+        this.precision = precision;
+        this.dimensions = dimensions;
+        this.coords = coords;
+        this.ringOffsets = ringOffsets;
+        this.polygonOffsets = polygonOffsets;
+    }
+
+    /**
+     * Decode a geometry, following the same layout as GeobufFeature.decodeGeometry. Returns null if the type is not
+     * supported.
+     */
+    static FixedPointGeometry decode (Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions) {
+        int precision = (int) Math.round(Math.log10(precisionDivisor));
+
+        switch (gbgeom.getType()) {
+            case POINT:
+                // points are not delta coded
+                long[] coords = new long[dimensions];
+                for (int dim = 0; dim < dimensions; dim++) coords[dim] = gbgeom.getCoords(dim);
+                return new FixedPointGeometry(gbgeom.getType(), precision, dimensions, coords, new int[] { 0, 1 },
+                        new int[] { 0, 1 });
+            case POLYGON:
+            case MULTIPOLYGON:
+                return decodePolygonal(gbgeom, precision, dimensions);
+            default:
+                return null;
+        }
+    }
+
+    private static FixedPointGeometry decodePolygonal (Geobuf.Data.Geometry gbgeom, int precision, int dimensions) {
+        int[] ringLengths;
+        int[] ringsPerPolygon;
+
+        if (gbgeom.getLengthsCount() == 0) {
+            // lengths may be omitted for a single polygon with a single ring
+            ringLengths = new int[] { gbgeom.getCoordsCount() / dimensions };
+            ringsPerPolygon = new int[] { 1 };
+        } else if (gbgeom.getType() == Geobuf.Data.Geometry.Type.POLYGON) {
+            ringLengths = new int[gbgeom.getLengthsCount()];
+            for (int i = 0; i < ringLengths.length; i++) ringLengths[i] = gbgeom.getLengths(i);
+            ringsPerPolygon = new int[] { ringLengths.length };
+        } else {
+            // number of polygons, then for each the number of rings and the length of each ring
+            int len = 0;
+            ringsPerPolygon = new int[gbgeom.getLengths(len++)];
+            ringLengths = new int[gbgeom.getLengthsCount() - 1 - ringsPerPolygon.length];
+            int ring = 0;
+            for (int poly = 0; poly < ringsPerPolygon.length; poly++) {
+                ringsPerPolygon[poly] = gbgeom.getLengths(len++);
+                for (int i = 0; i < ringsPerPolygon[poly]; i++) ringLengths[ring++] = gbgeom.getLengths(len++);
+            }
+        }
+
+        int[] ringOffsets = new int[ringLengths.length + 1];
+        for (int i = 0; i < ringLengths.length; i++) ringOffsets[i + 1] = ringOffsets[i] + ringLengths[i];
+
+        int[] polygonOffsets = new int[ringsPerPolygon.length + 1];
+        for (int i = 0; i < ringsPerPolygon.length; i++) polygonOffsets[i + 1] = polygonOffsets[i] + ringsPerPolygon[i];
+
+        // coordinates are delta coded within each ring
+        long[] coords = new long[ringOffsets[ringLengths.length] * dimensions];
+        int idx = 0;
+        for (int ring = 0; ring < ringLengths.length; ring++) {
+            long[] prev = new long[dimensions];
+            for (int i = 0; i < ringLengths[ring]; i++) {
+                for (int dim = 0; dim < dimensions; dim++, idx++) {
+                    prev[dim] += gbgeom.getCoords(idx);
+                    coords[idx] = prev[dim];
+                }
+            }
+        }
+
+        return new FixedPointGeometry(gbgeom.getType(), precision, dimensions, coords, ringOffsets, polygonOffsets);
+    }
+
+    /** @return the name of the type as JTS gives it, e.g. MultiPolygon, so both decode paths name it the same way */
+    public String getGeometryType () {
+        switch (type) {
+            case POINT: return "Point";
+            case POLYGON: return "Polygon";
+            default: return "MultiPolygon";
+        }
+    }
+
+    public int getNumCoordinates () {
+        return coords.length / dimensions;
+    }
+
+    public int getNumRings () {
+        return ringOffsets.length - 1;
+    }
+
+    public int getNumPolygons () {
+        return polygonOffsets.length - 1;
+    }
+
+    public long getX (int coord) {
+        return coords[coord * dimensions];
+    }
+
+    public long getY (int coord) {
+        return coords[coord * dimensions + 1];
+    }
+
+    /** @return whether a ring is the shell of its polygon rather than a hole */
+    public boolean isShell (int ring) {
+        return Arrays.binarySearch(polygonOffsets, ring) >= 0;
+    }
+
+    /** @return the bounding box, as min x, min y, max x, max y */
+    public long[] bbox () {
+        long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = 0; i < coords.length; i += dimensions) {
+            minX = Math.min(minX, coords[i]);
+            maxX = Math.max(maxX, coords[i]);
+            minY = Math.min(minY, coords[i + 1]);
+            maxY = Math.max(maxY, coords[i + 1]);
+        }
+        return new long[] { minX, minY, maxX, maxY };
+    }
+
+    /**
+     * @return twice the signed area of a ring in squared fixed-point units; positive if the ring is counterclockwise
+     * with y pointing up. The sum is exact in 128 bits and only rounded when it is converted to a double.
+     */
+    public double twiceSignedArea (int ring) {
+        return toDouble(ringArea(ring));
+    }
+
+    /**
+     * @return twice the area in squared fixed-point units, with holes subtracted whichever way they are wound. Exact
+     * in 128 bits until it is converted to a double. Zero for points.
+     */
+    public double twiceArea () {
+        long[] area = new long[2];
+        for (int ring = 0; ring < getNumRings(); ring++) {
+            long[] ringArea = ringArea(ring);
+            // shells add and holes subtract, whichever way they are wound
+            if (isShell(ring) != ringArea[0] >= 0) negate(ringArea);
+            add(area, ringArea);
+        }
+        return toDouble(area);
+    }
+
+    /** @return the area in square degrees */
+    public double area () {
+        double divisor = Math.pow(10, precision);
+        return twiceArea() / 2d / divisor / divisor;
+    }
+
+    /**
+     * @return the centroid (x, y) rounded to the nearest fixed-point unit. For polygons this is the area-weighted
+     * centroid: the area of each triangle is exact in 128 bits, but the weighted coordinate sums are doubles. For
+     * degenerate polygons with no area it is the mean of the coordinates.
+     */
+    public long[] centroid () {
+        long x0 = getX(0), y0 = getY(0);
+
+        long[] weight = new long[2], cross = new long[2];
+        double sumX = 0, sumY = 0;
+
+        for (int ring = 0; ring < getNumRings(); ring++) {
+            long[] ringArea = ringArea(ring);
+            if (ringArea[0] == 0 && ringArea[1] == 0) continue;
+
+            // shells add and holes subtract, whichever way they are wound
+            boolean negate = isShell(ring) != ringArea[0] >= 0;
+            if (negate) negate(ringArea);
+            add(weight, ringArea);
+
+            // sum over triangles fanned from the origin of (sum of vertices) * twice the triangle area
+            int start = ringOffsets[ring], end = ringOffsets[ring + 1];
+            for (int i = start; i < end; i++) {
+                int next = i + 1 == end ? start : i + 1;
+                long xa = getX(i) - x0, ya = getY(i) - y0, xb = getX(next) - x0, yb = getY(next) - y0;
+                cross[0] = cross[1] = 0;
+                addCross(cross, xa, ya, xb, yb);
+                double triangle = negate ? -toDouble(cross) : toDouble(cross);
+                sumX += (xa + xb) * triangle;
+                sumY += (ya + yb) * triangle;
+            }
+        }
+
+        if (weight[0] == 0 && weight[1] == 0) {
+            // points, or polygons with no area
+            double x = 0, y = 0;
+            int n = getNumCoordinates();
+            for (int i = 0; i < n; i++) {
+                x += getX(i) - x0;
+                y += getY(i) - y0;
+            }
+            return new long[] { x0 + Math.round(x / n), y0 + Math.round(y / n) };
+        }
+
+        double divisor = 3 * toDouble(weight);
+        return new long[] { x0 + Math.round(sumX / divisor), y0 + Math.round(sumY / divisor) };
+    }
+
+    /** @return twice the signed area of a ring in a 128 bit accumulator */
+    private long[] ringArea (int ring) {
+        long[] sum = new long[2];
+        int start = ringOffsets[ring], end = ringOffsets[ring + 1];
+        if (end - start < 3) return sum;
+
+        // relative to the first coordinate, which keeps the products small
+        long x0 = getX(start), y0 = getY(start);
+        for (int i = start + 1; i < end - 1; i++) {
+            addCross(sum, getX(i) - x0, getY(i) - y0, getX(i + 1) - x0, getY(i + 1) - y0);
+        }
+        return sum;
+    }
+
+    /**
+     * add the cross product xa * yb - xb * ya to a 128 bit accumulator. Differences of longitudes and latitudes fit in
+     * 49 bits even at precision 12, so hundreds of millions of them can be summed.
+     */
+    private static void addCross (long[] acc, long xa, long ya, long xb, long yb) {
+        add(acc, xa, yb);
+        add(acc, -xb, ya);
+    }
+
+    /** add a * b to a 128 bit accumulator */
+    private static void add (long[] acc, long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        long sum = acc[1] + low;
+        // carry out of the low word
+        if (Long.compareUnsigned(sum, low) < 0) high++;
+        acc[0] += high;
+        acc[1] = sum;
+    }
+
+    /** add one 128 bit value to another */
+    private static void add (long[] acc, long[] value) {
+        long sum = acc[1] + value[1];
+        acc[0] += value[0] + (Long.compareUnsigned(sum, value[1]) < 0 ? 1 : 0);
+        acc[1] = sum;
+    }
+
+    private static void negate (long[] value) {
+        // two's complement, carrying into the high word only when the low word is zero
+        value[0] = value[1] == 0 ? -value[0] : ~value[0];
+        value[1] = -value[1];
+    }
+
+    private static double toDouble (long[] acc) {
+        // the low word is unsigned
+        double low = (acc[1] >>> 1) * 2d + (acc[1] & 1);
+        return acc[0] * 0x1p64 + low;
+    }
+
+    /** Convert to a JTS geometry, dividing coordinates by 10^precision */
+    public Geometry toGeometry (GeometryFactory factory) {
+        double divisor = Math.pow(10, precision);
+
+        if (type == Geobuf.Data.Geometry.Type.POINT) return factory.createPoint(coordinate(0, divisor));
+
+        Polygon[] polygons = new Polygon[getNumPolygons()];
+        for (int poly = 0; poly < polygons.length; poly++) {
+            LinearRing[] rings = new LinearRing[polygonOffsets[poly + 1] - polygonOffsets[poly]];
+            for (int r = 0; r < rings.length; r++) {
+                int ring = polygonOffsets[poly] + r;
+                int start = ringOffsets[ring], end = ringOffsets[ring + 1];
+                Coordinate[] ringCoords = new Coordinate[end - start + 1];
+                for (int i = start; i < end; i++) ringCoords[i - start] = coordinate(i, divisor);
+                ringCoords[end - start] = ringCoords[0];
+                rings[r] = factory.createLinearRing(ringCoords);
+            }
+            polygons[poly] = factory.createPolygon(rings[0], Arrays.copyOfRange(rings, 1, rings.length));
+        }
+
+        return type == Geobuf.Data.Geometry.Type.POLYGON ? polygons[0] : factory.createMultiPolygon(polygons);
+    }
+
+    private Coordinate coordinate (int coord, double divisor) {
+        Coordinate c = new Coordinate(getX(coord) / divisor, getY(coord) / divisor);
+        if (dimensions > 2) c.setZ(coords[coord * dimensions + 2] / divisor);
+        return c;
+    }
+
+    /** Geometries are equal if they have exactly the same type, precision, structure and coordinates */
+    @Override public boolean equals (Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FixedPointGeometry)) return false;
+        FixedPointGeometry other = (FixedPointGeometry) o;
+        return type == other.type && precision == other.precision && dimensions == other.dimensions &&
+                Arrays.equals(coords, other.coords) && Arrays.equals(ringOffsets, other.ringOffsets) &&
+                Arrays.equals(polygonOffsets, other.polygonOffsets);
+    }
+
+    @Override public int hashCode () {
+        int result = type.hashCode();
+        result = 31 * result + precision;
+        result = 31 * result + Arrays.hashCode(coords);
+        result = 31 * result + Arrays.hashCode(ringOffsets);
+        return 31 * result + Arrays.hashCode(polygonOffsets);
+    }
+}
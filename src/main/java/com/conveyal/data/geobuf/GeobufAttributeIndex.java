@@ -0,0 +1,395 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * An index of the values of one property of the features in a geobuf feature collection, for finding features by
+ * value or range of values without scanning the file.
+ *
+ * The index is a sidecar file next to the geobuf (e.g. parcels.geobuf.zoning.attr) holding the values of the property
+ * sorted, each with the position of its feature in the geobuf. The sorted entries are split into pages, and a directory
+ * of the first value in each page is read into memory when the index is opened, so a lookup is a binary search of the
+ * directory followed by a scan of the pages covering the requested range; only the matching features are parsed.
+ *
+ * Numbers (and booleans, as 0 and 1) sort before strings, and are compared as doubles. Features without the property,
+ * or with a null value, are not indexed.
+ *
+ * When the geobuf has been appended to since the index was built (e.g. with StreamingGeobufWriter.append), only the
+ * appended fragments are scanned and their entries merged into the index. To detect other modifications, the index
+ * records the length of the geobuf and a checksum of its last few kilobytes; if these do not match the index is
+ * rebuilt from scratch.
+ *
+ * The index file layout is:
+ * <pre>
+ *     magic (8 bytes), format version (int), key (UTF), indexed geobuf length (long), geobuf last modified (long),
+ *     checksum of the end of the indexed geobuf (long), number of keys in the indexed geobuf (int), entry count (int)
+ *     pages of entries: value type (byte), value (double, or UTF-8 length (int) and bytes), feature offset (long),
+ *         feature length (int)
+ *     page count (int), then for each page: position (long), entry count (int), first value
+ *     directory position (long), magic (8 bytes)
+ * </pre>
+ *
+ * Like GeobufCursor, this only supports geobufs of at most 2GB.
+ */
+public class GeobufAttributeIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufAttributeIndex.class);
+
+    static final byte[] MAGIC = { 'G', 'E', 'O', 'B', 'U', 'F', 'A', 'X' };
+
+    static final int FORMAT_VERSION = 1;
+
+    public static final int PAGE_SIZE = 256;
+
+    /** number of bytes at the end of the indexed geobuf that are checksummed to detect modifications */
+    private static final int CHECKSUM_LENGTH = 4096;
+
+    private static final byte NUMBER = 0, STRING = 1;
+
+    /** numbers before strings, then by value */
+    private static final Comparator<Object> VALUE_ORDER = (v1, v2) -> {
+        if (v1 instanceof Double && v2 instanceof Double) return Double.compare((Double) v1, (Double) v2);
+        else if (v1 instanceof String && v2 instanceof String) return ((String) v1).compareTo((String) v2);
+        else return v1 instanceof Double ? -1 : 1;
+    };
+
+    private static final Comparator<Entry> ENTRY_ORDER =
+            Comparator.<Entry, Object>comparing(e -> e.value, VALUE_ORDER).thenComparingLong(e -> e.offset);
+
+    public final String key;
+
+    private final ByteBuffer geobuf;
+
+    private final ByteBuffer index;
+
+    private final GeobufHeader header;
+
+    private final int entryCount;
+
+    /** directory of pages */
+    private final int[] pagePositions;
+    private final int[] pageSizes;
+    private final Object[] firstValues;
+
+    /** number of features read from the geobuf to build or update the index when it was opened, zero if up to date */
+    int featuresScanned;
+
+    private GeobufAttributeIndex (String key, ByteBuffer geobuf, ByteBuffer index, GeobufHeader header) {
+        this.key = key;
+        this.geobuf = geobuf;
+        this.index = index;
+        this.header = header;
+
+        ByteBuffer footer = index.duplicate();
+        footer.position(index.limit() - 8 - MAGIC.length);
+        footer.position((int) footer.getLong());
+
+        int pageCount = footer.getInt();
+        pagePositions = new int[pageCount];
+        pageSizes = new int[pageCount];
+        firstValues = new Object[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            pagePositions[i] = (int) footer.getLong();
+            pageSizes[i] = footer.getInt();
+            firstValues[i] = readValue(footer);
+        }
+        this.entryCount = Arrays.stream(pageSizes).sum();
+    }
+
+    /** Open the index of the given property of a geobuf, building or updating it first if necessary */
+    public static GeobufAttributeIndex open (File geobuf, String key) throws IOException {
+        File indexFile = indexFile(geobuf, key);
+        ByteBuffer geobufBuffer = GeobufIdIndex.map(geobuf);
+
+        IndexHeader indexHeader = null;
+        if (indexFile.exists()) {
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                indexHeader = IndexHeader.read(is);
+            } catch (IOException e) {
+                LOG.warn("Unable to read index {}, rebuilding", indexFile, e);
+            }
+        }
+
+        int scanned = 0;
+        if (indexHeader == null || !indexHeader.key.equals(key) || indexHeader.geobufLength > geobuf.length() ||
+                checksum(geobufBuffer, indexHeader.geobufLength) != indexHeader.checksum) {
+            LOG.info("Building index of {} for {}", key, geobuf);
+            scanned = build(geobuf, geobufBuffer, key, indexFile, null);
+        } else if (indexHeader.geobufLength < geobuf.length()) {
+            LOG.info("Updating index of {} for {}", key, geobuf);
+            scanned = build(geobuf, geobufBuffer, key, indexFile, indexHeader);
+        } else if (indexHeader.lastModified != geobuf.lastModified()) {
+            // same length but modified, which is not an append
+            LOG.info("Rebuilding index of {} for {}", key, geobuf);
+            scanned = build(geobuf, geobufBuffer, key, indexFile, null);
+        }
+
+        GeobufAttributeIndex index =
+                new GeobufAttributeIndex(key, geobufBuffer, GeobufIdIndex.map(indexFile), GeobufHeader.read(geobuf));
+        index.featuresScanned = scanned;
+        return index;
+    }
+
+    /** @return the sidecar file holding the index of a property of a geobuf */
+    public static File indexFile (File geobuf, String key) {
+        return new File(geobuf.getPath() + "." + URLEncoder.encode(key, StandardCharsets.UTF_8) + ".attr");
+    }
+
+    /**
+     * Write the index, reading only the part of the geobuf after what was indexed previously if previous is not null.
+     * @return the number of features read
+     */
+    private static int build (File geobuf, ByteBuffer geobufBuffer, String key, File indexFile, IndexHeader previous)
+            throws IOException {
+        // record geobuf metadata before reading, so that changes made during the scan make the index stale
+        long length = geobufBuffer.limit();
+        long lastModified = geobuf.lastModified();
+
+        List<Entry> entries = new ArrayList<>();
+        GeobufCursor cursor;
+
+        if (previous == null) {
+            cursor = new GeobufCursor(geobufBuffer);
+        } else {
+            // keep the existing entries, and start reading after the keys and features that have already been indexed
+            GeobufAttributeIndex old = new GeobufAttributeIndex(key, geobufBuffer, GeobufIdIndex.map(indexFile), null);
+            for (int page = 0; page < old.pagePositions.length; page++) old.readPage(page, entries);
+
+            GeobufHeader header = GeobufHeader.read(geobuf);
+            cursor = new GeobufCursor(geobufBuffer, (int) previous.geobufLength,
+                    header.keys.subList(0, previous.keyCount), header.precision, header.dimensions);
+        }
+
+        GeobufFeatureView view = cursor.view();
+        int scanned = 0;
+        while (cursor.next()) {
+            scanned++;
+            int keyIdx = cursor.keyIndex(key);
+            Object value;
+            switch (view.valueType(keyIdx)) {
+                case VALUE_STRING:
+                    value = view.getString(keyIdx);
+                    break;
+                case VALUE_DOUBLE:
+                case VALUE_POS_INT:
+                case VALUE_NEG_INT:
+                    value = view.getDouble(keyIdx);
+                    break;
+                case VALUE_BOOL:
+                    value = view.getBoolean(keyIdx) ? 1d : 0d;
+                    break;
+                default:
+                    // no value, or a JSON value that cannot be compared
+                    continue;
+            }
+
+            entries.add(new Entry(value, view.start(), view.end() - view.start()));
+        }
+
+        entries.sort(ENTRY_ORDER);
+
+        // write to a temporary file and move it into place, so that readers never see a partly written index
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            IndexHeader header = new IndexHeader();
+            header.key = key;
+            header.geobufLength = length;
+            header.lastModified = lastModified;
+            header.checksum = checksum(geobufBuffer, length);
+            header.keyCount = cursor.getKeys().size();
+            header.entryCount = entries.size();
+            header.write(out);
+
+            int pageCount = (entries.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+            long[] pagePositions = new long[pageCount];
+            for (int page = 0; page < pageCount; page++) {
+                pagePositions[page] = out.size();
+                for (Entry entry : entries.subList(page * PAGE_SIZE, Math.min(entries.size(), (page + 1) * PAGE_SIZE))) {
+                    writeValue(out, entry.value);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                }
+            }
+
+            long directoryPosition = out.size();
+            out.writeInt(pageCount);
+            for (int page = 0; page < pageCount; page++) {
+                out.writeLong(pagePositions[page]);
+                out.writeInt(Math.min(PAGE_SIZE, entries.size() - page * PAGE_SIZE));
+                writeValue(out, entries.get(page * PAGE_SIZE).value);
+            }
+
+            out.writeLong(directoryPosition);
+            out.write(MAGIC);
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return scanned;
+    }
+
+    /** @return features whose value of this property equals the given string, number or boolean, in file order */
+    public List<GeobufFeature> getEqual (Object value) throws IOException {
+        return getRange(value, value);
+    }
+
+    /**
+     * @return features whose value of this property is between lower and upper inclusive, in file order. Use two
+     * numbers or two strings; numbers sort before strings, so a range from a number to a string includes both.
+     */
+    public List<GeobufFeature> getRange (Object lower, Object upper) throws IOException {
+        Object lowerValue = normalize(lower);
+        Object upperValue = normalize(upper);
+
+        // the last page starting before lower; entries equal to lower may also be at the end of it
+        int page = 0;
+        int lo = 0, hi = firstValues.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (VALUE_ORDER.compare(firstValues[mid], lowerValue) < 0) {
+                page = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        List<Entry> matches = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+        scan:
+        for (; page < pagePositions.length; page++) {
+            entries.clear();
+            readPage(page, entries);
+            for (Entry entry : entries) {
+                if (VALUE_ORDER.compare(entry.value, upperValue) > 0) break scan;
+                if (VALUE_ORDER.compare(entry.value, lowerValue) >= 0) matches.add(entry);
+            }
+        }
+
+        // read features in file order, which is sequential and returns them in a predictable order
+        matches.sort(Comparator.comparingLong(e -> e.offset));
+
+        List<GeobufFeature> features = new ArrayList<>(matches.size());
+        double precisionDivisor = Math.pow(10, header.precision);
+        for (Entry entry : matches) {
+            byte[] bytes = new byte[entry.length];
+            ByteBuffer slice = geobuf.duplicate();
+            slice.position((int) entry.offset);
+            slice.get(bytes);
+            features.add(new GeobufFeature(Geobuf.Data.Feature.parseFrom(bytes), header.keys, precisionDivisor,
+                    header.dimensions));
+        }
+        return features;
+    }
+
+    /** @return the number of features with a value for this property */
+    public int size () {
+        return entryCount;
+    }
+
+    private void readPage (int page, List<Entry> entries) {
+        ByteBuffer buf = index.duplicate();
+        buf.position(pagePositions[page]);
+        for (int i = 0; i < pageSizes[page]; i++) {
+            entries.add(new Entry(readValue(buf), buf.getLong(), buf.getInt()));
+        }
+    }
+
+    private static Object normalize (Object value) {
+        if (value instanceof String) return value;
+        else if (value instanceof Boolean) return (Boolean) value ? 1d : 0d;
+        else if (value instanceof Number) return ((Number) value).doubleValue();
+        else throw new IllegalArgumentException("Cannot query on value of type " + value.getClass());
+    }
+
+    private static void writeValue (DataOutput out, Object value) throws IOException {
+        if (value instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((Double) value);
+        } else {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Object readValue (ByteBuffer buf) {
+        if (buf.get() == NUMBER) return buf.getDouble();
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** @return a checksum of the bytes of the geobuf just before length */
+    static long checksum (ByteBuffer geobuf, long length) {
+        ByteBuffer slice = geobuf.duplicate();
+        slice.limit((int) length).position((int) Math.max(0, length - CHECKSUM_LENGTH));
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return crc.getValue();
+    }
+
+    private static class Entry {
+        final Object value;
+        final long offset;
+        final int length;
+
+        Entry (Object value, long offset, int length) {
+            this.value = value;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /** the fixed fields at the start of an index file */
+    private static class IndexHeader {
+        String key;
+        long geobufLength;
+        long lastModified;
+        long checksum;
+        int keyCount;
+        int entryCount;
+
+        void write (DataOutputStream out) throws IOException {
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeLong(geobufLength);
+            out.writeLong(lastModified);
+            out.writeLong(checksum);
+            out.writeInt(keyCount);
+            out.writeInt(entryCount);
+        }
+
+        static IndexHeader read (DataInput in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a geobuf attribute index");
+
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported attribute index version " + version);
+
+            IndexHeader header = new IndexHeader();
+            header.key = in.readUTF();
+            header.geobufLength = in.readLong();
+            header.lastModified = in.readLong();
+            header.checksum = in.readLong();
+            header.keyCount = in.readInt();
+            header.entryCount = in.readInt();
+            return header;
+        }
+    }
+}
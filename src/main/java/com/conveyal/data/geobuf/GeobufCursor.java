@@ -0,0 +1,183 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * Scan the features of a geobuf held in a ByteBuffer (typically a memory-mapped file) without decoding them.
+ *
+ * There is a single GeobufFeatureView per cursor, which is repointed at each feature in turn; properties and geometry
+ * are only decoded when they are requested. A full scan therefore allocates almost nothing, but the view is only valid
+ * until the next call to next(). Use GeobufFeatureView.toFeature() to keep a copy of a feature.
+ *
+ * <pre>
+ *     GeobufCursor cursor = GeobufCursor.open(file);
+ *     GeobufFeatureView view = cursor.view();
+ *     while (cursor.next()) {
+ *         if ("residential".equals(view.get("landuse"))) . . .
+ *     }
+ * </pre>
+ */
+public class GeobufCursor {
+    private final ByteBuffer buffer;
+
+    private final WireReader reader = new WireReader();
+
+    private final List<String> keys = new ArrayList<>();
+
+    private final Map<String, Integer> keyIndices = new HashMap<>();
+
+    double precisionDivisor = Math.pow(10, 6);
+
+    int dimensions = 2;
+
+    /** factory for geometries decoded from the view, or null to use the default */
+    GeometryFactory geometryFactory;
+
+    /** end of the feature collection currently being read, or -1 if not in a feature collection */
+    private int featureCollectionEnd = -1;
+
+    private final GeobufFeatureView view = new GeobufFeatureView(this);
+
+    private GeobufFilter filter;
+
+    /** the filter bound to the keys seen so far, and the number of keys it was bound to */
+    private GeobufFilter.Compiled compiledFilter;
+    private int compiledKeyCount = -1;
+
+    /** Create a cursor over an entire buffer containing a geobuf */
+    public GeobufCursor (ByteBuffer buffer) {
+        this.buffer = buffer;
+        reader.reset(buffer, 0, buffer.limit());
+    }
+
+    /**
+     * Create a cursor that starts partway through a buffer, after the given keys have been read. Used to read only the
+     * fragments appended to a geobuf since it was last read.
+     */
+    GeobufCursor (ByteBuffer buffer, int start, List<String> keys, int precision, int dimensions) {
+        this(buffer);
+        reader.pos = start;
+        for (String key : keys) {
+            keyIndices.putIfAbsent(key, this.keys.size());
+            this.keys.add(key);
+        }
+        this.precisionDivisor = Math.pow(10, precision);
+        this.dimensions = dimensions;
+    }
+
+    /** Memory-map a geobuf file (of at most 2GB) and create a cursor over it */
+    public static GeobufCursor open (File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            return new GeobufCursor(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Decode geometries from the view with the given factory, so they have its SRID, precision model and sequence type */
+    public void setGeometryFactory (GeometryFactory geometryFactory) {
+        this.geometryFactory = geometryFactory;
+    }
+
+    /** Skip features that do not match the filter, or stop filtering if it is null */
+    public void setFilter (GeobufFilter filter) {
+        this.filter = filter;
+        this.compiledKeyCount = -1;
+    }
+
+    /** @return the view, which will point to the current feature after each successful call to next() */
+    public GeobufFeatureView view () {
+        return view;
+    }
+
+    /** Advance to the next feature, returning false if there are no more features */
+    public boolean next () throws IOException {
+        while (true) {
+            if (featureCollectionEnd != -1 && reader.pos >= featureCollectionEnd) {
+                featureCollectionEnd = -1;
+            }
+
+            int tag = reader.readTag();
+            int field = tag >>> 3;
+
+            if (featureCollectionEnd != -1) {
+                if (field == FEATURE_COLLECTION_FEATURES) {
+                    int end = reader.readLengthDelimited();
+                    view.reset(buffer, reader.pos, end);
+                    reader.pos = end;
+
+                    if (filter != null) {
+                        if (keys.size() != compiledKeyCount) {
+                            compiledFilter = filter.compile(this::keyIndex);
+                            compiledKeyCount = keys.size();
+                        }
+
+                        if (!compiledFilter.test(view)) continue;
+                    }
+
+                    return true;
+                }
+
+                // feature collection values and custom properties are not supported
+                reader.skipField(tag);
+                continue;
+            }
+
+            switch (field) {
+                case 0:
+                    return false;
+                case DATA_KEYS:
+                    int end = reader.readLengthDelimited();
+                    String key = reader.readString(reader.pos, end);
+                    keyIndices.putIfAbsent(key, keys.size());
+                    keys.add(key);
+                    reader.pos = end;
+                    break;
+                case DATA_DIMENSIONS:
+                    dimensions = reader.readVarint32();
+                    break;
+                case DATA_PRECISION:
+                    precisionDivisor = Math.pow(10, reader.readVarint32());
+                    break;
+                case DATA_FEATURE_COLLECTION:
+                    featureCollectionEnd = reader.readLengthDelimited();
+                    break;
+                case DATA_FEATURE:
+                case DATA_GEOMETRY:
+                    throw new UnsupportedOperationException("Geobuf is not a feature collection");
+                default:
+                    reader.skipField(tag);
+            }
+        }
+    }
+
+    /** @return the keys seen so far. Keys appear before the features that use them. */
+    public List<String> getKeys () {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return the index of a key in the keys table, or -1 if it has not been seen. Keys are read along with the
+     * features, so look up key indices after the first call to next().
+     */
+    public int keyIndex (String key) {
+        Integer idx = keyIndices.get(key);
+        return idx == null ? -1 : idx;
+    }
+
+    String key (int keyIdx) {
+        return keys.get(keyIdx);
+    }
+}
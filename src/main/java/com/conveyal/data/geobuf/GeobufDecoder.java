@@ -1,47 +1,268 @@
 package com.conveyal.data.geobuf;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
 import geobuf.Geobuf;
+import org.locationtech.jts.geom.GeometryFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Decode a Geobuf.
+ *
+ * Features are decoded incrementally as the stream is read, so memory use depends on the size of the largest feature
+ * rather than the size of the file. Protobuf size limits are applied to each feature separately, so files larger than
+ * protobuf's 64MB default (or even its 2GB maximum message size) can be read.
+ *
+ * Top-level fields are handled in the order they appear. Encoders write keys, dimensions and precision before the
+ * feature collection, but several Data messages may also be concatenated: protobuf merges repeated keys and feature
+ * collections, so each fragment's keys are available before that fragment's features.
  */
-public class GeobufDecoder implements Iterator<GeobufFeature> {
-    private int maxFeat, i = 0;
+public class GeobufDecoder implements Iterator<GeobufFeature>, Closeable {
+    /** Default maximum size of a single feature, the same as protobuf's default message size limit */
+    public static final int DEFAULT_SIZE_LIMIT = 64 * 1024 * 1024;
 
-    private Geobuf.Data.FeatureCollection featureCollection;
+    /** Default maximum nesting depth of messages, the same as protobuf's default */
+    public static final int DEFAULT_RECURSION_LIMIT = 64;
 
-    private List<String> keys;
+    // field numbers in Data
+    static final int DATA_KEYS = 1, DATA_DIMENSIONS = 2, DATA_PRECISION = 3, DATA_FEATURE_COLLECTION = 4,
+            DATA_FEATURE = 5, DATA_GEOMETRY = 6;
 
-    private double precisionDivisor;
+    // field numbers in FeatureCollection
+    static final int FEATURE_COLLECTION_FEATURES = 1;
+
+    // field numbers in Feature
+    static final int FEATURE_GEOMETRY = 1, FEATURE_ID = 11, FEATURE_INT_ID = 12, FEATURE_VALUES = 13,
+            FEATURE_PROPERTIES = 14;
+
+    // field numbers in Value
+    static final int VALUE_STRING = 1, VALUE_DOUBLE = 2, VALUE_POS_INT = 3, VALUE_NEG_INT = 4, VALUE_BOOL = 5,
+            VALUE_JSON = 6;
+
+    private final InputStream is;
+
+    private final CodedInputStream input;
+
+    final List<String> keys = new ArrayList<>();
+
+    double precisionDivisor = Math.pow(10, 6);
+
+    int dimensions = 2;
+
+    /** factory for decoded geometries, or null to use the default */
+    private final GeometryFactory geometryFactory;
+
+    private final int recursionLimit;
+
+    /** only features matching this filter are decoded, or all features if null */
+    private final GeobufFilter filter;
+
+    /** the filter bound to the keys seen so far, and the number of keys it was bound to */
+    private GeobufFilter.Compiled compiledFilter;
+    private int compiledKeyCount = -1;
+
+    /** view used to evaluate the filter on encoded features */
+    private GeobufFeatureView filterView;
+
+    /** bytes left in the feature collection currently being read, or -1 if not in a feature collection */
+    private long remainingInFeatureCollection = -1;
+
+    /** the next feature to return, or null if the stream is exhausted */
+    private Geobuf.Data.Feature nextFeature;
+
+    private boolean closed = false;
+
+    private boolean fixedPoint = false;
 
     /** Create a Geobuf decoder, optionally backed by high-performance on-disk storage */
     public GeobufDecoder (InputStream is) throws IOException {
-        // read everything into memory
-        Geobuf.Data data = Geobuf.Data.parseFrom(is);
-        keys = data.getKeysList();
-        featureCollection = data.getFeatureCollection();
+        this(is, DEFAULT_SIZE_LIMIT, DEFAULT_RECURSION_LIMIT);
+    }
+
+    /**
+     * Create a Geobuf decoder with the given limits on the size (in bytes) of a single feature and on how deeply
+     * geometries may be nested.
+     */
+    public GeobufDecoder (InputStream is, int sizeLimit, int recursionLimit) throws IOException {
+        this(is, sizeLimit, recursionLimit, null);
+    }
+
+    /**
+     * Create a Geobuf decoder that creates geometries directly with the given factory, so they have its SRID, precision
+     * model and coordinate sequence type without being copied.
+     */
+    public GeobufDecoder (InputStream is, GeometryFactory geometryFactory) throws IOException {
+        this(is, DEFAULT_SIZE_LIMIT, DEFAULT_RECURSION_LIMIT, geometryFactory);
+    }
+
+    public GeobufDecoder (InputStream is, int sizeLimit, int recursionLimit, GeometryFactory geometryFactory)
+            throws IOException {
+        this(is, sizeLimit, recursionLimit, geometryFactory, null);
+    }
+
+    /**
+     * Create a Geobuf decoder that only returns features matching the filter. The filter is evaluated on the encoded
+     * features, so rejected features are never decoded.
+     */
+    public GeobufDecoder (InputStream is, GeobufFilter filter) throws IOException {
+        this(is, DEFAULT_SIZE_LIMIT, DEFAULT_RECURSION_LIMIT, null, filter);
+    }
+
+    public GeobufDecoder (InputStream is, int sizeLimit, int recursionLimit, GeometryFactory geometryFactory,
+                          GeobufFilter filter) throws IOException {
+        this.is = is;
+        this.geometryFactory = geometryFactory;
+        this.filter = filter;
+        this.recursionLimit = recursionLimit;
+        if (filter != null) this.filterView = new GeobufFeatureView(null);
+        this.input = CodedInputStream.newInstance(is);
+        this.input.setSizeLimit(sizeLimit);
+        this.input.setRecursionLimit(recursionLimit);
+
+        // read the header and the first feature, so that non-feature-collection geobufs fail fast
+        advance();
+    }
+
+    /** Read up to and including the next feature, handling any header fields encountered along the way */
+    private void advance () throws IOException {
+        nextFeature = null;
+
+        while (true) {
+            // size limits apply per feature rather than to the whole stream
+            input.resetSizeCounter();
+
+            if (remainingInFeatureCollection > 0) {
+                int tag = input.readTag();
+                if (WireFormat.getTagFieldNumber(tag) == FEATURE_COLLECTION_FEATURES) {
+                    if (filter == null)
+                        nextFeature = input.readMessage(Geobuf.Data.Feature.PARSER, ExtensionRegistryLite.getEmptyRegistry());
+                    else
+                        nextFeature = readFilteredFeature();
+                } else
+                    // feature collection values and custom properties are not supported
+                    input.skipField(tag);
+
+                int bytesRead = input.getTotalBytesRead();
+                remainingInFeatureCollection -= bytesRead;
+                GeobufMetrics.count(GeobufMetrics.DECODE_BYTES, bytesRead);
+
+                if (remainingInFeatureCollection < 0)
+                    throw new IOException("Feature extends past end of feature collection");
+
+                if (nextFeature != null) return;
+                else continue;
+            }
+
+            int tag = input.readTag();
+
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 0:
+                    // end of stream
+                    close();
+                    return;
+                case DATA_KEYS:
+                    keys.add(input.readString());
+                    break;
+                case DATA_DIMENSIONS:
+                    dimensions = input.readUInt32();
+                    break;
+                case DATA_PRECISION:
+                    precisionDivisor = Math.pow(10, input.readUInt32());
+                    break;
+                case DATA_FEATURE_COLLECTION:
+                    // don't parse the whole feature collection as a message, just note how long it is
+                    remainingInFeatureCollection = input.readRawVarint64();
+                    break;
+                case DATA_FEATURE:
+                case DATA_GEOMETRY:
+                    close();
+                    throw new UnsupportedOperationException("Geobuf is not a feature collection");
+                default:
+                    input.skipField(tag);
+            }
+        }
+    }
+
+    /** Read an encoded feature, and parse it only if it matches the filter; otherwise return null */
+    private Geobuf.Data.Feature readFilteredFeature () throws IOException {
+        byte[] bytes = input.readByteArray();
 
-        if (featureCollection == null)
-            throw new UnsupportedOperationException("Geobuf is not a feature collection");
+        // keys may be added by later fragments, so rebind the filter when they change
+        if (keys.size() != compiledKeyCount) {
+            compiledFilter = filter.compile(keys::indexOf);
+            compiledKeyCount = keys.size();
+        }
 
-        maxFeat = featureCollection.getFeaturesCount();
+        filterView.reset(ByteBuffer.wrap(bytes), 0, bytes.length);
+        if (!compiledFilter.test(filterView)) {
+            GeobufMetrics.count(GeobufMetrics.DECODE_FILTERED, 1);
+            return null;
+        }
 
-        // calculate what to divide coords by; coords are stored as fixed-point longs
-        precisionDivisor = Math.pow(10, data.getPrecision());
+        CodedInputStream featureInput = CodedInputStream.newInstance(bytes);
+        featureInput.setRecursionLimit(recursionLimit);
+        return Geobuf.Data.Feature.PARSER.parseFrom(featureInput);
+    }
 
-        is.close();
+    /**
+     * Return geometries as FixedPointGeometry in GeobufFeature.fixedPointGeometry, in the integer coordinates they are
+     * stored with, rather than converting them to JTS geometries. GeobufFeature.geometry is then null.
+     */
+    public void setFixedPoint (boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
     }
 
     @Override public boolean hasNext() {
-        return i < maxFeat;
+        return nextFeature != null;
     }
 
     @Override public GeobufFeature next() {
-        return new GeobufFeature(featureCollection.getFeatures(i++), keys, precisionDivisor);
+        if (nextFeature == null) throw new NoSuchElementException();
+
+        GeobufFeature feature;
+        if (fixedPoint) feature = new GeobufFeature(nextFeature, keys, precisionDivisor, dimensions, null, true);
+        else if (geometryFactory == null) feature = new GeobufFeature(nextFeature, keys, precisionDivisor, dimensions);
+        else feature = new GeobufFeature(nextFeature, keys, precisionDivisor, dimensions, geometryFactory);
+
+        try {
+            advance();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return feature;
+    }
+
+    /**
+     * @return the next feature without decoding it, or null if there are no more features. It should be decoded with
+     * the keys, precision and dimensions of this decoder as they are now, as they may change when skip() is called.
+     */
+    Geobuf.Data.Feature peekRaw () {
+        return nextFeature;
+    }
+
+    /** Move past the current feature without decoding it */
+    void skip () throws IOException {
+        if (nextFeature == null) throw new NoSuchElementException();
+        advance();
+    }
+
+    /** Close the underlying stream. This is done automatically once all features have been read. */
+    @Override public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            nextFeature = null;
+            is.close();
+        }
     }
 }
@@ -24,21 +24,90 @@ public class GeobufEncoder {
     /** What to multiply floating point values by to get desired precision */
     public final long precisionMultiplier;
 
+    /** Never detect a precision higher than this, as doubles only have about 15 significant digits */
+    public static final int MAX_PRECISION = 12;
+
+    /** Ordered property keys that every feature is encoded against, or null to discover keys feature by feature */
+    private List<String> schema;
+
+    /** position of each key in the schema */
+    private Map<String, Integer> schemaIndices;
+
     public GeobufEncoder(OutputStream outputStream, int precision) {
         this.outputStream = outputStream;
         this.precision = precision;
         this.precisionMultiplier = (long) Math.pow(10, precision);
     }
 
+    /**
+     * Create an encoder using the smallest precision that losslessly represents all the coordinates in the sample.
+     * Pass the full feature collection for a lossless encoding, or a subset to trade accuracy for a quicker scan.
+     */
+    public static GeobufEncoder withDetectedPrecision (OutputStream outputStream, Iterable<GeobufFeature> sample) {
+        return new GeobufEncoder(outputStream, detectPrecision(sample, MAX_PRECISION));
+    }
+
+    /**
+     * Find the number of digits after the decimal point needed to represent every coordinate in the features exactly,
+     * capped at maxPrecision. This is the same approach the JS geobuf implementation uses.
+     */
+    public static int detectPrecision (Iterable<GeobufFeature> features, int maxPrecision) {
+        PrecisionFilter filter = new PrecisionFilter(maxPrecision);
+
+        for (GeobufFeature feature : features) {
+            if (feature.geometry != null) feature.geometry.apply(filter);
+            if (filter.isDone()) break;
+        }
+
+        return filter.precision;
+    }
+
+    /**
+     * Encode all features against a fixed, ordered list of property keys. The keys table starts with the schema, and
+     * each feature's properties are written in schema order without searching the keys table. Properties not in the
+     * schema are still encoded, after the schema columns, and null values are left out. Set the schema before encoding
+     * any features; pass null to go back to discovering keys from each feature.
+     */
+    public void setSchema (List<String> schema) {
+        if (schema == null) {
+            this.schema = null;
+            this.schemaIndices = null;
+            return;
+        }
+
+        Map<String, Integer> indices = new HashMap<>();
+        for (int i = 0; i < schema.size(); i++) {
+            if (indices.put(schema.get(i), i) != null)
+                throw new IllegalArgumentException("Duplicate key " + schema.get(i) + " in schema");
+        }
+
+        this.schema = new ArrayList<>(schema);
+        this.schemaIndices = indices;
+    }
+
+    public List<String> getSchema () {
+        return schema == null ? null : Collections.unmodifiableList(schema);
+    }
+
+    /** Infer a schema from the property keys of a feature, in sorted order as feature properties are unordered */
+    public static List<String> inferSchema (GeobufFeature feature) {
+        List<String> schema = new ArrayList<>(feature.properties.keySet());
+        Collections.sort(schema);
+        return schema;
+    }
+
     public void writeFeatureCollection (Collection<GeobufFeature> featureCollection) throws IOException {
-        outputStream.write(makeFeatureCollection(featureCollection).toByteArray());
+        byte[] bytes = makeFeatureCollection(featureCollection).toByteArray();
+        outputStream.write(bytes);
+        GeobufMetrics.count(GeobufMetrics.ENCODE_BYTES, bytes.length);
     }
 
     public Geobuf.Data makeFeatureCollection (Collection<GeobufFeature> featureCollection) {
+        int dimensions = detectDimensions(featureCollection);
+
         Geobuf.Data.Builder data = Geobuf.Data.newBuilder()
                 .setPrecision(this.precision)
-                // TODO don't hardwire
-                .setDimensions(2);
+                .setDimensions(dimensions);
 
         Geobuf.Data.FeatureCollection.Builder fc = Geobuf.Data.FeatureCollection.newBuilder();
 
@@ -46,7 +115,7 @@ public class GeobufEncoder {
         List<String> keys = new ArrayList<>();
 
         featureCollection.stream()
-                .map(f -> this.makeFeature(f, keys))
+                .map(f -> this.makeFeature(f, keys, dimensions))
                 .forEach(fc::addFeatures);
 
         fc.addAllValues(Collections.emptyList());
@@ -58,54 +127,62 @@ public class GeobufEncoder {
         return data.build();
     }
 
-    private Geobuf.Data.Feature makeFeature (GeobufFeature feature, List<String> keys) {
+    /** Wrap already-encoded features in a feature collection, using the keys they were encoded against */
+    Geobuf.Data makeFeatureCollection (List<Geobuf.Data.Feature> features, List<String> keys, int dimensions) {
+        return Geobuf.Data.newBuilder()
+                .setPrecision(this.precision)
+                .setDimensions(dimensions)
+                .addAllKeys(keys)
+                .setFeatureCollection(Geobuf.Data.FeatureCollection.newBuilder().addAllFeatures(features))
+                .build();
+    }
+
+    /** Encode a single feature, adding its keys to the keys list if they are not already present */
+    Geobuf.Data.Feature makeFeature (GeobufFeature feature, List<String> keys, int dimensions) {
+        boolean metrics = GeobufMetrics.enabled();
+        long start = metrics ? System.nanoTime() : 0;
+
         Geobuf.Data.Feature.Builder feat = Geobuf.Data.Feature.newBuilder()
-                .setGeometry(geomToGeobuf(feature.geometry));
-
-        for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
-            // TODO store keys separately from features
-            Geobuf.Data.Value.Builder val = Geobuf.Data.Value.newBuilder();
-
-            Object featVal = e.getValue();
-
-            if (featVal instanceof String)
-                val.setStringValue((String) featVal);
-            else if (featVal instanceof Boolean)
-                val.setBoolValue((Boolean) featVal);
-            else if (featVal instanceof Integer) {
-                int keyInt = (Integer) featVal;
-                if (keyInt >= 0)
-                    val.setPosIntValue(keyInt);
-                else
-                    val.setNegIntValue(keyInt);
-            }
-            else if (featVal instanceof Long) {
-                long keyLong = (Long) featVal;
-                if (keyLong >= 0)
-                    val.setPosIntValue(keyLong);
-                else
-                    val.setNegIntValue(keyLong);
-            }
-            else if (featVal instanceof Double || featVal instanceof Float)
-                val.setDoubleValue(((Number) featVal).doubleValue());
-            else {
-                // TODO serialize to JSON
-                LOG.warn("Unable to save object of type {} to geobuf, falling back on toString. Deserialization will not work as expected.", featVal.getClass());
-                val.setStringValue(featVal.toString());
-            }
+                .setGeometry(geomToGeobuf(feature.geometry, dimensions));
+
+        if (metrics) {
+            GeobufMetrics.record(GeobufMetrics.encodeGeometryNanos(feature.geometry.getGeometryType()),
+                    System.nanoTime() - start);
+            GeobufMetrics.count(GeobufMetrics.ENCODE_VERTICES, feature.geometry.getNumPoints());
+            GeobufMetrics.count(GeobufMetrics.ENCODE_FEATURES, 1);
+        }
 
-            int keyIdx = keys.indexOf(e.getKey());
-            if (keyIdx == -1) {
+        if (schema != null) {
+            if (keys.isEmpty()) {
                 synchronized (keys) {
-                    keyIdx = keys.size();
-                    keys.add(e.getKey());
+                    if (keys.isEmpty()) keys.addAll(schema);
+                }
+            }
+
+            // keys table starts with the schema, so the key index is the position in the schema
+            int found = 0;
+            for (int keyIdx = 0; keyIdx < schema.size(); keyIdx++) {
+                Object featVal = feature.properties.get(schema.get(keyIdx));
+                if (featVal != null) {
+                    addProperty(feat, keyIdx, makeValue(featVal));
+                    found++;
+                } else if (feature.properties.containsKey(schema.get(keyIdx))) {
+                    found++;
                 }
             }
 
-            // properties is a jagged array of [key index, value index, . . .]
-            feat.addProperties(keyIdx);
-            feat.addProperties(feat.getValuesCount());
-            feat.addValues(val);
+            // slow path for properties outside the schema
+            if (found < feature.properties.size()) {
+                for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                    if (!schemaIndices.containsKey(e.getKey()) && e.getValue() != null)
+                        addProperty(feat, keyIndex(keys, e.getKey()), makeValue(e.getValue()));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                // TODO store keys separately from features
+                addProperty(feat, keyIndex(keys, e.getKey()), makeValue(e.getValue()));
+            }
         }
 
         if (feature.id != null) {
@@ -120,26 +197,94 @@ public class GeobufEncoder {
         return feat.build();
     }
 
+    /** properties is a jagged array of [key index, value index, . . .] */
+    private static void addProperty (Geobuf.Data.Feature.Builder feat, int keyIdx, Geobuf.Data.Value.Builder val) {
+        feat.addProperties(keyIdx);
+        feat.addProperties(feat.getValuesCount());
+        feat.addValues(val);
+    }
+
+    /** Find a key in the keys table, adding it if it is not already present */
+    private static int keyIndex (List<String> keys, String key) {
+        int keyIdx = keys.indexOf(key);
+        if (keyIdx == -1) {
+            synchronized (keys) {
+                keyIdx = keys.size();
+                keys.add(key);
+            }
+        }
+        return keyIdx;
+    }
+
+    private Geobuf.Data.Value.Builder makeValue (Object featVal) {
+        Geobuf.Data.Value.Builder val = Geobuf.Data.Value.newBuilder();
+
+        if (featVal instanceof String)
+            val.setStringValue((String) featVal);
+        else if (featVal instanceof Boolean)
+            val.setBoolValue((Boolean) featVal);
+        else if (featVal instanceof Integer) {
+            int keyInt = (Integer) featVal;
+            if (keyInt >= 0)
+                val.setPosIntValue(keyInt);
+            else
+                val.setNegIntValue(keyInt);
+        }
+        else if (featVal instanceof Long) {
+            long keyLong = (Long) featVal;
+            if (keyLong >= 0)
+                val.setPosIntValue(keyLong);
+            else
+                val.setNegIntValue(keyLong);
+        }
+        else if (featVal instanceof Double || featVal instanceof Float)
+            val.setDoubleValue(((Number) featVal).doubleValue());
+        else {
+            // TODO serialize to JSON
+            LOG.warn("Unable to save object of type {} to geobuf, falling back on toString. Deserialization will not work as expected.", featVal.getClass());
+            val.setStringValue(featVal.toString());
+            GeobufMetrics.count(GeobufMetrics.ENCODE_TOSTRING_FALLBACKS, 1);
+        }
+
+        return val;
+    }
+
+    /** Encode a two-dimensional geometry */
     public Geobuf.Data.Geometry geomToGeobuf (Geometry geometry) {
+        return geomToGeobuf(geometry, 2);
+    }
+
+    /** Encode a geometry with the given number of dimensions (2 for XY, 3 for XYZ, 4 for XYZM) */
+    public Geobuf.Data.Geometry geomToGeobuf (Geometry geometry, int dimensions) {
         if (geometry instanceof Point)
-            return pointToGeobuf((Point) geometry);
+            return pointToGeobuf((Point) geometry, dimensions);
         else if (geometry instanceof Polygon)
-            return polyToGeobuf((Polygon) geometry);
+            return polyToGeobuf((Polygon) geometry, dimensions);
         else if (geometry instanceof MultiPolygon)
-            return multiPolyToGeobuf((MultiPolygon) geometry);
+            return multiPolyToGeobuf((MultiPolygon) geometry, dimensions);
         else
             throw new UnsupportedOperationException("Unsupported geometry type " + geometry.getGeometryType());
     }
 
     public Geobuf.Data.Geometry pointToGeobuf(Point point) {
-        return Geobuf.Data.Geometry.newBuilder()
-                .setType(Geobuf.Data.Geometry.Type.POINT)
-                .addCoords((long) (point.getX() * precisionMultiplier))
-                .addCoords((long) (point.getY() * precisionMultiplier))
-                .build();
+        return pointToGeobuf(point, 2);
+    }
+
+    public Geobuf.Data.Geometry pointToGeobuf(Point point, int dimensions) {
+        Geobuf.Data.Geometry.Builder builder = Geobuf.Data.Geometry.newBuilder()
+                .setType(Geobuf.Data.Geometry.Type.POINT);
+
+        // a single point is not delta coded
+        addCoords(point.getCoordinateSequence(), 1, dimensions, builder);
+
+        return builder.build();
     }
 
     public Geobuf.Data.Geometry multiPolyToGeobuf (MultiPolygon poly) {
+        return multiPolyToGeobuf(poly, 2);
+    }
+
+    public Geobuf.Data.Geometry multiPolyToGeobuf (MultiPolygon poly, int dimensions) {
         Geobuf.Data.Geometry.Builder builder = Geobuf.Data.Geometry.newBuilder()
                 .setType(Geobuf.Data.Geometry.Type.MULTIPOLYGON);
 
@@ -155,13 +300,17 @@ public class GeobufEncoder {
                     .<LineString>mapToObj(p::getInteriorRingN);
 
             Stream.concat(Stream.of(p.getExteriorRing()), interiorRings)
-                    .forEach(r -> addRing(r, builder));
+                    .forEach(r -> addRing(r, dimensions, builder));
         }
 
         return builder.build();
     }
 
     public Geobuf.Data.Geometry polyToGeobuf (Polygon poly) {
+        return polyToGeobuf(poly, 2);
+    }
+
+    public Geobuf.Data.Geometry polyToGeobuf (Polygon poly, int dimensions) {
         Geobuf.Data.Geometry.Builder builder = Geobuf.Data.Geometry.newBuilder()
                 .setType(Geobuf.Data.Geometry.Type.POLYGON);
 
@@ -169,36 +318,115 @@ public class GeobufEncoder {
                 .mapToObj(poly::getInteriorRingN);
 
         Stream.concat(Stream.of(poly.getExteriorRing()), interiorRings)
-                .forEach(r -> addRing(r, builder));
+                .forEach(r -> addRing(r, dimensions, builder));
 
         return builder.build();
     }
 
     /** Add a ring to a builder */
-    private void addRing(LineString r, Geobuf.Data.Geometry.Builder builder) {
+    private void addRing(LineString r, int dimensions, Geobuf.Data.Geometry.Builder builder) {
         // skip last point, same as first
         builder.addLengths(r.getNumPoints() - 1);
+        addCoords(r.getCoordinateSequence(), r.getNumPoints() - 1, dimensions, builder);
+    }
 
-        long x, y, prevX = 0, prevY = 0;
+    /**
+     * Add the first n coordinates of a sequence to a builder, delta coding each ordinate separately. Ordinates are
+     * interleaved (x, y, z, m, x, y, . . .); missing Z or M values are written as zero.
+     */
+    private void addCoords (CoordinateSequence seq, int n, int dimensions, Geobuf.Data.Geometry.Builder builder) {
+        long[] prev = new long[dimensions];
+        boolean hasZ = dimensions > 2 && seq.hasZ();
+        boolean hasM = dimensions > 3 && seq.hasM();
+
+        for (int i = 0; i < n; i++) {
+            for (int dim = 0; dim < dimensions; dim++) {
+                double val;
+                if (dim == 0) val = seq.getX(i);
+                else if (dim == 1) val = seq.getY(i);
+                else if (dim == 2) val = hasZ ? seq.getZ(i) : Double.NaN;
+                else val = hasM ? seq.getM(i) : Double.NaN;
+
+                // note that roundoff errors do not accumulate
+                long fixed = Double.isNaN(val) ? 0 : Math.round(val * precisionMultiplier);
+                builder.addCoords(fixed - prev[dim]);
+                prev[dim] = fixed;
+            }
+        }
+    }
 
-        // last point is same as first, skip
-        for (int i = 0; i < r.getNumPoints() - 1; i++) {
-            // delta code
-            Coordinate coord = r.getCoordinateN(i);
-            // note that roundoff errors do not accumulate
-            x = (long) (coord.x * precisionMultiplier);
-            y = (long) (coord.y * precisionMultiplier);
-            builder.addCoords(x - prevX);
-            builder.addCoords(y - prevY);
-            prevX = x;
-            prevY = y;
+    /**
+     * Find the number of dimensions needed to represent the features: 2 for XY, 3 if any coordinate has a Z value and
+     * 4 if any coordinate has an M value. Many sequences report three dimensions even for 2D data, so Z values are
+     * only counted if they are not NaN.
+     */
+    public static int detectDimensions (Iterable<GeobufFeature> features) {
+        DimensionFilter filter = new DimensionFilter();
+
+        for (GeobufFeature feature : features) {
+            if (feature.geometry != null) feature.geometry.apply(filter);
+            if (filter.isDone()) break;
         }
+
+        return filter.dimensions;
     }
 
     public void close () throws IOException {
         outputStream.close();
     }
 
+    /** Finds the precision needed to represent all coordinates in the geometries it is applied to */
+    private static class PrecisionFilter implements CoordinateSequenceFilter {
+        private final int maxPrecision;
+
+        private int precision = 0;
+        private double multiplier = 1;
+
+        private PrecisionFilter (int maxPrecision) {
+            this.maxPrecision = maxPrecision;
+        }
+
+        @Override public void filter(CoordinateSequence seq, int i) {
+            check(seq.getX(i));
+            check(seq.getY(i));
+            if (seq.hasZ() && !Double.isNaN(seq.getZ(i))) check(seq.getZ(i));
+            if (seq.hasM() && !Double.isNaN(seq.getM(i))) check(seq.getM(i));
+        }
+
+        private void check (double val) {
+            while (precision < maxPrecision && Math.round(val * multiplier) / multiplier != val) {
+                precision++;
+                multiplier *= 10;
+            }
+        }
+
+        @Override public boolean isDone() {
+            return precision >= maxPrecision;
+        }
+
+        @Override public boolean isGeometryChanged() {
+            return false;
+        }
+    }
+
+    /** Finds the number of dimensions used by the geometries it is applied to */
+    private static class DimensionFilter implements CoordinateSequenceFilter {
+        private int dimensions = 2;
+
+        @Override public void filter(CoordinateSequence seq, int i) {
+            if (seq.hasM() && !Double.isNaN(seq.getM(i))) dimensions = 4;
+            else if (dimensions < 3 && seq.hasZ() && !Double.isNaN(seq.getZ(i))) dimensions = 3;
+        }
+
+        @Override public boolean isDone() {
+            return dimensions == 4;
+        }
+
+        @Override public boolean isGeometryChanged() {
+            return false;
+        }
+    }
+
     public static class GeobufFeatureSerializer extends Serializer<GeobufFeature> implements Serializable {
         public final int precision;
 
@@ -210,6 +438,8 @@ public class GeobufEncoder {
 
         @Override
         public void serialize(DataOutput dataOutput, GeobufFeature geobufFeature) throws IOException {
+            boolean metrics = GeobufMetrics.enabled();
+            long start = metrics ? System.nanoTime() : 0;
             GeobufEncoder enc = getEncoder();
             // This could be more efficient, we're wrapping a single feature in a feature collection. But that way the key/value
             // serialization all works.
@@ -217,16 +447,31 @@ public class GeobufEncoder {
             byte[] data = feat.toByteArray();
             dataOutput.writeInt(data.length);
             dataOutput.write(data);
+
+            if (metrics) {
+                GeobufMetrics.record(GeobufMetrics.SERIALIZE_NANOS, System.nanoTime() - start);
+                GeobufMetrics.count(GeobufMetrics.SERIALIZER_BYTES_WRITTEN, data.length + 4);
+            }
         }
 
         @Override
         public GeobufFeature deserialize(DataInput dataInput, int i) throws IOException {
+            boolean metrics = GeobufMetrics.enabled();
+            long start = metrics ? System.nanoTime() : 0;
             int len = dataInput.readInt();
             byte[] feat = new byte[len];
             dataInput.readFully(feat);
             Geobuf.Data data = Geobuf.Data.parseFrom(feat);
 
-            return new GeobufFeature(data.getFeatureCollection().getFeatures(0), data.getKeysList(), Math.pow(10, data.getPrecision()));
+            GeobufFeature feature = new GeobufFeature(data.getFeatureCollection().getFeatures(0), data.getKeysList(),
+                    Math.pow(10, data.getPrecision()), data.getDimensions());
+
+            if (metrics) {
+                GeobufMetrics.record(GeobufMetrics.DESERIALIZE_NANOS, System.nanoTime() - start);
+                GeobufMetrics.count(GeobufMetrics.SERIALIZER_BYTES_READ, len + 4);
+            }
+
+            return feature;
         }
 
         /** get the geobuf encoder, lazy initializing if needed. JVM should inline this function */
@@ -1,6 +1,8 @@
 package com.conveyal.data.geobuf;
 
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
 import geobuf.Geobuf;
 import org.geotools.feature.type.GeometryTypeImpl;
 import org.opengis.feature.Property;
@@ -9,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +25,10 @@ public class GeobufFeature implements Cloneable, Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(GeobufFeature.class);
 
     public Geometry geometry;
+
+    /** the geometry in fixed-point coordinates, set instead of geometry when decoded in fixed-point mode */
+    public FixedPointGeometry fixedPointGeometry;
+
     public Map<String, Object> properties;
     public String id;
     public long numericId;
@@ -46,6 +53,29 @@ public class GeobufFeature implements Cloneable, Serializable {
 
     /** decode a feature from GeoBuf, passing in the keys in the file and the precision divison (e.g. 1e6 for precision 6) */
     public GeobufFeature(Geobuf.Data.Feature feature, List<String> keys, double precisionDivisor) {
+        this(feature, keys, precisionDivisor, 2);
+    }
+
+    /**
+     * decode a feature from GeoBuf, passing in the keys in the file, the precision divison (e.g. 1e6 for precision 6)
+     * and the number of dimensions in the file.
+     */
+    public GeobufFeature(Geobuf.Data.Feature feature, List<String> keys, double precisionDivisor, int dimensions) {
+        this(feature, keys, precisionDivisor, dimensions, geometryFactory);
+    }
+
+    /** Decode a feature, creating its geometry with the given factory */
+    public GeobufFeature(Geobuf.Data.Feature feature, List<String> keys, double precisionDivisor, int dimensions,
+                         GeometryFactory geometryFactory) {
+        this(feature, keys, precisionDivisor, dimensions, geometryFactory, false);
+    }
+
+    /**
+     * Decode a feature. In fixed-point mode, the geometry is left in the integer coordinates it is stored with and set
+     * as fixedPointGeometry rather than geometry.
+     */
+    GeobufFeature(Geobuf.Data.Feature feature, List<String> keys, double precisionDivisor, int dimensions,
+                  GeometryFactory geometryFactory, boolean fixedPoint) {
         // easy part: parse out the properties
         this.properties = new HashMap<>();
 
@@ -69,12 +99,27 @@ public class GeobufFeature implements Cloneable, Serializable {
         }
 
         // parse geometry
-        Geobuf.Data.Geometry gbgeom = feature.getGeometry();
+        boolean metrics = GeobufMetrics.enabled();
+        long start = metrics ? System.nanoTime() : 0;
 
-        if (Geobuf.Data.Geometry.Type.MULTIPOLYGON.equals(gbgeom.getType()))
-            this.geometry = decodeMultipolygon(gbgeom, precisionDivisor);
-        else
-            LOG.warn("Unsupported geometry type {}", gbgeom.getType());
+        if (fixedPoint) {
+            this.fixedPointGeometry = FixedPointGeometry.decode(feature.getGeometry(), precisionDivisor, dimensions);
+
+            if (metrics && this.fixedPointGeometry != null) {
+                GeobufMetrics.record(GeobufMetrics.decodeGeometryNanos(this.fixedPointGeometry.getGeometryType()),
+                        System.nanoTime() - start);
+                GeobufMetrics.count(GeobufMetrics.DECODE_VERTICES, this.fixedPointGeometry.getNumCoordinates());
+            }
+        } else {
+            this.geometry = decodeGeometry(feature.getGeometry(), precisionDivisor, dimensions, geometryFactory);
+        }
+
+        if (metrics && this.geometry != null) {
+            GeobufMetrics.record(GeobufMetrics.decodeGeometryNanos(this.geometry.getGeometryType()),
+                    System.nanoTime() - start);
+            GeobufMetrics.count(GeobufMetrics.DECODE_VERTICES, this.geometry.getNumPoints());
+        }
+        GeobufMetrics.count(GeobufMetrics.DECODE_FEATURES, 1);
 
         // parse ID
         if (feature.hasIntId())
@@ -83,14 +128,64 @@ public class GeobufFeature implements Cloneable, Serializable {
             this.id = feature.getId();
     }
 
-    private Geometry decodeMultipolygon(Geobuf.Data.Geometry gbgeom, double precisionDivisor) {
+    /** Decode a geometry, returning null if the type is not supported */
+    static Geometry decodeGeometry (Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions) {
+        return decodeGeometry(gbgeom, precisionDivisor, dimensions, geometryFactory);
+    }
+
+    /**
+     * Decode a geometry directly into the given factory, using its coordinate sequence factory, SRID and precision
+     * model. Returns null if the type is not supported.
+     */
+    static Geometry decodeGeometry (Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions,
+                                    GeometryFactory factory) {
+        switch (gbgeom.getType()) {
+            case POINT:
+                return decodePoint(gbgeom, precisionDivisor, dimensions, factory);
+            case POLYGON:
+                return decodePolygon(gbgeom, precisionDivisor, dimensions, factory);
+            case MULTIPOLYGON:
+                return decodeMultipolygon(gbgeom, precisionDivisor, dimensions, factory);
+            default:
+                LOG.warn("Unsupported geometry type {}", gbgeom.getType());
+                return null;
+        }
+    }
+
+    private static Geometry decodePoint (Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions,
+                                         GeometryFactory factory) {
+        // points are not delta coded
+        double[] coords = new double[dimensions];
+        for (int dim = 0; dim < dimensions; dim++) {
+            coords[dim] = gbgeom.getCoords(dim) / precisionDivisor;
+        }
+        return factory.createPoint(sequence(coords, dimensions, factory));
+    }
+
+    private static Geometry decodePolygon (Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions,
+                                           GeometryFactory factory) {
+        // lengths are the number of coordinates in each ring; they may be omitted when there is only one ring
+        int nring = Math.max(gbgeom.getLengthsCount(), 1);
+        int[] coordGlobalIdx = new int[1];
+        return decodePolygon(gbgeom, 0, nring, coordGlobalIdx, precisionDivisor, dimensions, factory);
+    }
+
+    private static Geometry decodeMultipolygon(Geobuf.Data.Geometry gbgeom, double precisionDivisor, int dimensions,
+                                               GeometryFactory factory) {
         // decode multipolygon one polygon at a time
         // first length is number of polygons, next is number of rigns, number of coordinates for each ring,
         // number of rings, number of coordinates for each ring . . .
-        int len = 0, coordGlobalIdx = 0;
+        // lengths may be omitted entirely for a single polygon with a single ring
+        if (gbgeom.getLengthsCount() == 0) {
+            Polygon polygon = decodePolygon(gbgeom, -1, 1, new int[1], precisionDivisor, dimensions, factory);
+            return factory.createMultiPolygon(new Polygon[] { polygon });
+        }
+
+        int len = 0;
+        int[] coordGlobalIdx = new int[1];
         int npoly = gbgeom.getLengths(len++);
 
-        Polygon[] polygons = new Polygon[npoly];
+        List<Polygon> polygons = new ArrayList<>(npoly);
 
         for (int poly = 0; poly < npoly; poly++) {
             int nring = gbgeom.getLengths(len++);
@@ -100,42 +195,86 @@ public class GeobufFeature implements Cloneable, Serializable {
                 continue;
             }
 
-            // geobuf treats the exterior as ring 0, while JTS treats it as a separate entity
-            LinearRing shell = null;
-            LinearRing[] holes = new LinearRing[nring - 1];
-
-            for (int ring = 0; ring < nring; ring++) {
-                int ncoord = gbgeom.getLengths(len++);
-                Coordinate[] coords = new Coordinate[ncoord + 1];
+            polygons.add(decodePolygon(gbgeom, len, nring, coordGlobalIdx, precisionDivisor, dimensions, factory));
+            len += nring;
+        }
 
-                long prevx = 0, prevy = 0;
+        return factory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+    }
 
-                for (int coordRingIdx = 0; coordRingIdx < ncoord; coordRingIdx++) {
-                    // TODO more than two dimensions
-                    long x = gbgeom.getCoords(coordGlobalIdx++) + prevx;
-                    long y = gbgeom.getCoords(coordGlobalIdx++) + prevy;
+    /**
+     * Decode nring rings, whose lengths start at lengthIdx (or which use all coordinates if lengthIdx is -1), starting at
+     * coordGlobalIdx[0], which is advanced past the coordinates that were consumed.
+     */
+    private static Polygon decodePolygon (Geobuf.Data.Geometry gbgeom, int lengthIdx, int nring, int[] coordGlobalIdx,
+                                          double precisionDivisor, int dimensions, GeometryFactory factory) {
+        // geobuf treats the exterior as ring 0, while JTS treats it as a separate entity
+        LinearRing shell = null;
+        LinearRing[] holes = new LinearRing[nring - 1];
+
+        for (int ring = 0; ring < nring; ring++) {
+            int ncoord = lengthIdx == -1 || gbgeom.getLengthsCount() == 0 ?
+                    gbgeom.getCoordsCount() / dimensions :
+                    gbgeom.getLengths(lengthIdx + ring);
+
+            // JTS wants closed polygons, so leave space to repeat the first coordinate
+            double[] coords = new double[(ncoord + 1) * dimensions];
+
+            long[] prev = new long[dimensions];
+
+            for (int coordRingIdx = 0; coordRingIdx < ncoord; coordRingIdx++) {
+                for (int dim = 0; dim < dimensions; dim++) {
+                    long val = gbgeom.getCoords(coordGlobalIdx[0]++) + prev[dim];
+                    coords[coordRingIdx * dimensions + dim] = val / precisionDivisor;
+                    prev[dim] = val;
+                }
+            }
 
-                    coords[coordRingIdx] = new Coordinate(x / precisionDivisor, y / precisionDivisor);
+            System.arraycopy(coords, 0, coords, ncoord * dimensions, dimensions);
 
-                    prevx = x;
-                    prevy = y;
-                }
+            LinearRing theRing = factory.createLinearRing(sequence(coords, dimensions, factory));
 
-                // JTS wants closed polygons
-                coords[ncoord] = coords[0];
+            if (ring == 0)
+                shell = theRing;
+            else
+                holes[ring - 1] = theRing;
+        }
 
-                LinearRing theRing = geometryFactory.createLinearRing(coords);
+        return factory.createPolygon(shell, holes);
+    }
 
-                if (ring == 0)
-                    shell = theRing;
-                else
-                    holes[ring - 1] = theRing;
+    /**
+     * Wrap decoded ordinates in a coordinate sequence of the factory's type: XY, XYZ or XYZM. With the default factory or
+     * a packed double factory the array is used as-is, so no Coordinate objects are created when decoding.
+     */
+    private static CoordinateSequence sequence (double[] coords, int dimensions, GeometryFactory factory) {
+        int measures = dimensions > 3 ? 1 : 0;
+
+        PrecisionModel precisionModel = factory.getPrecisionModel();
+        if (!precisionModel.isFloating()) {
+            // precision models apply to X and Y only
+            for (int i = 0; i < coords.length; i += dimensions) {
+                coords[i] = precisionModel.makePrecise(coords[i]);
+                coords[i + 1] = precisionModel.makePrecise(coords[i + 1]);
             }
-
-            polygons[poly] = geometryFactory.createPolygon(shell, holes);
         }
 
-        return geometryFactory.createMultiPolygon(polygons);
+        CoordinateSequenceFactory csf = factory.getCoordinateSequenceFactory();
+
+        if (factory == geometryFactory) {
+            return new PackedCoordinateSequence.Double(coords, dimensions, measures);
+        } else if (csf instanceof PackedCoordinateSequenceFactory) {
+            return ((PackedCoordinateSequenceFactory) csf).create(coords, dimensions, measures);
+        } else {
+            int size = coords.length / dimensions;
+            CoordinateSequence seq = csf.create(size, dimensions, measures);
+            for (int i = 0; i < size; i++) {
+                for (int dim = 0; dim < dimensions; dim++) {
+                    seq.setOrdinate(i, dim, coords[i * dimensions + dim]);
+                }
+            }
+            return seq;
+        }
     }
 
     /** return a copy of this object (also makes a defensive copy of properties, but not of the geometry as the geometry is considered immutable) */
@@ -151,7 +290,7 @@ public class GeobufFeature implements Cloneable, Serializable {
         ret.properties = new HashMap<>();
         ret.properties.putAll(this.properties);
 
-        // no need to clone geometry as it's immutable
+        // no need to clone geometries as they're immutable
 
         return ret;
     }
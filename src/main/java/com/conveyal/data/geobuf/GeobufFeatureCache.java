@@ -0,0 +1,103 @@
+package com.conveyal.data.geobuf;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Striped;
+
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A bounded cache of decoded features in front of a map of features, typically a MapDB map using
+ * GeobufEncoder.GeobufFeatureSerializer. Reading from such a map re-parses the protobuf and rebuilds the geometry on
+ * every access; this cache keeps recently used features decoded instead.
+ *
+ * The cache is bounded by the total number of vertices in the cached geometries rather than the number of features, as
+ * geometry dominates the memory used by a feature. Features are returned as clones, so callers may modify the properties
+ * without affecting the cache (geometries are shared, as they are immutable).
+ *
+ * Loads on a miss and writes through put and remove hold a lock for their key, so a feature read from the map before
+ * a concurrent write cannot be cached after that write has invalidated it. Hits do not lock.
+ */
+public class GeobufFeatureCache<K> {
+    private final Map<K, GeobufFeature> map;
+
+    private final Cache<K, GeobufFeature> cache;
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    /** Wrap a map of features in a cache holding features with at most maxVertices vertices in total */
+    public GeobufFeatureCache (Map<K, GeobufFeature> map, long maxVertices) {
+        this.map = map;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxVertices)
+                // count every feature as at least one vertex so that features without geometry are still bounded
+                .weigher((K key, GeobufFeature feature) ->
+                        feature.geometry == null ? 1 : Math.max(feature.geometry.getNumPoints(), 1))
+                .recordStats()
+                .build();
+    }
+
+    /** Get a feature, from the cache if possible. Returns null if it is not in the underlying map. */
+    public GeobufFeature get (K key) {
+        GeobufFeature feature = cache.getIfPresent(key);
+
+        if (feature == null) {
+            Lock lock = locks.get(key);
+            lock.lock();
+            try {
+                // another thread may have loaded it while we waited (asMap does not count this as a second miss)
+                feature = cache.asMap().get(key);
+                if (feature == null) {
+                    feature = map.get(key);
+                    if (feature == null) return null;
+                    cache.put(key, feature);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return feature.clone();
+    }
+
+    /** Write a feature through to the underlying map */
+    public void put (K key, GeobufFeature feature) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            map.put(key, feature);
+            cache.invalidate(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove a feature from the underlying map */
+    public void remove (K key) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            map.remove(key);
+            cache.invalidate(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drop all cached features, e.g. if the underlying map has been modified directly */
+    public void invalidateAll () {
+        cache.invalidateAll();
+    }
+
+    /** @return hit, miss and eviction counts */
+    public CacheStats stats () {
+        return cache.stats();
+    }
+
+    /** @return the approximate number of features currently cached */
+    public long size () {
+        return cache.size();
+    }
+}
@@ -0,0 +1,398 @@
+package com.conveyal.data.geobuf;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import geobuf.Geobuf;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * A read-only view of a feature in an encoded geobuf, obtained from a GeobufCursor.
+ *
+ * The view holds only the location of the feature in the buffer. The first property access makes a single pass over
+ * the feature recording where its values are, into arrays that are reused from feature to feature; individual values and
+ * the geometry are only decoded when requested. The view is repointed at the next feature when the cursor advances, so
+ * do not hold on to it.
+ */
+public class GeobufFeatureView {
+    private final GeobufCursor cursor;
+
+    private final WireReader reader = new WireReader();
+
+    private ByteBuffer buffer;
+
+    private int start, end;
+
+    private boolean indexed;
+
+    private int geometryStart, geometryEnd;
+
+    /** start and end of each Value message in the feature */
+    private int[] valueStarts = new int[16], valueEnds = new int[16];
+    private int valueCount;
+
+    /** pairs of key index, value index */
+    private int[] properties = new int[32];
+    private int propertyCount;
+
+    private int idStart, idEnd;
+    private long numericId;
+    private boolean hasNumericId;
+
+    /**
+     * Create a view for a cursor. The view may also be created without a cursor, to evaluate filters in GeobufDecoder,
+     * in which case only the methods taking key indices may be used.
+     */
+    GeobufFeatureView (GeobufCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    void reset (ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        this.indexed = false;
+    }
+
+    /** @return the position of the encoded feature in the buffer */
+    int start () {
+        return start;
+    }
+
+    /** @return the position just after the encoded feature in the buffer */
+    int end () {
+        return end;
+    }
+
+    /** find where everything is in the feature */
+    private void index () {
+        if (indexed) return;
+
+        geometryStart = geometryEnd = -1;
+        idStart = idEnd = -1;
+        hasNumericId = false;
+        numericId = 0;
+        valueCount = 0;
+        propertyCount = 0;
+
+        try {
+            reader.reset(buffer, start, end);
+            for (int tag = reader.readTag(); tag != 0; tag = reader.readTag()) {
+                switch (tag >>> 3) {
+                    case FEATURE_GEOMETRY:
+                        geometryEnd = reader.readLengthDelimited();
+                        geometryStart = reader.pos;
+                        reader.pos = geometryEnd;
+                        break;
+                    case FEATURE_ID:
+                        idEnd = reader.readLengthDelimited();
+                        idStart = reader.pos;
+                        reader.pos = idEnd;
+                        break;
+                    case FEATURE_INT_ID:
+                        long zigzag = reader.readVarint64();
+                        numericId = (zigzag >>> 1) ^ -(zigzag & 1);
+                        hasNumericId = true;
+                        break;
+                    case FEATURE_VALUES:
+                        int valueEnd = reader.readLengthDelimited();
+                        if (valueCount == valueStarts.length) {
+                            valueStarts = Arrays.copyOf(valueStarts, valueCount * 2);
+                            valueEnds = Arrays.copyOf(valueEnds, valueCount * 2);
+                        }
+                        valueStarts[valueCount] = reader.pos;
+                        valueEnds[valueCount++] = valueEnd;
+                        reader.pos = valueEnd;
+                        break;
+                    case FEATURE_PROPERTIES:
+                        if ((tag & 0x7) == 2) {
+                            // packed
+                            int propertiesEnd = reader.readLengthDelimited();
+                            while (reader.pos < propertiesEnd) addProperty(reader.readVarint32());
+                        } else {
+                            addProperty(reader.readVarint32());
+                        }
+                        break;
+                    default:
+                        reader.skipField(tag);
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        indexed = true;
+    }
+
+    private void addProperty (int val) {
+        if (propertyCount == properties.length) properties = Arrays.copyOf(properties, propertyCount * 2);
+        properties[propertyCount++] = val;
+    }
+
+    /** @return the number of properties of this feature */
+    public int getPropertyCount () {
+        index();
+        return propertyCount / 2;
+    }
+
+    /** @return the key of the ith property of this feature */
+    public String getPropertyKey (int i) {
+        index();
+        return cursor.key(properties[i * 2]);
+    }
+
+    /** @return the value of the ith property of this feature */
+    public Object getPropertyValue (int i) {
+        index();
+        return decodeValue(properties[i * 2 + 1]);
+    }
+
+    /** @return the value of a property, or null if this feature does not have it */
+    public Object get (String key) {
+        int valueIdx = valueIndex(cursor.keyIndex(key));
+        return valueIdx == -1 ? null : decodeValue(valueIdx);
+    }
+
+    /** @return true if this feature has the given property */
+    public boolean has (String key) {
+        return valueIndex(cursor.keyIndex(key)) != -1;
+    }
+
+    /** @return the index of the value for the given key index, or -1 if this feature does not have that key */
+    int valueIndex (int keyIdx) {
+        if (keyIdx == -1) return -1;
+        index();
+        for (int i = 0; i < propertyCount; i += 2) {
+            if (properties[i] == keyIdx) return properties[i + 1];
+        }
+        return -1;
+    }
+
+    /**
+     * Typed accessors. These take a key index from GeobufCursor.keyIndex, which can be looked up once per file rather
+     * than once per feature, and do not box numeric values. Numeric getters return 0 when the feature does not have
+     * the property or it is not a number; use isNull to tell these apart.
+     */
+    public long getLong (int keyIdx) {
+        int tag = seekValue(valueIndex(keyIdx));
+        try {
+            switch (tag >>> 3) {
+                case VALUE_POS_INT:
+                case VALUE_NEG_INT:
+                case VALUE_BOOL:
+                    return reader.readVarint64();
+                case VALUE_DOUBLE:
+                    return (long) reader.readDouble();
+                default:
+                    return 0;
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public double getDouble (int keyIdx) {
+        int tag = seekValue(valueIndex(keyIdx));
+        try {
+            switch (tag >>> 3) {
+                case VALUE_DOUBLE:
+                    return reader.readDouble();
+                case VALUE_POS_INT:
+                case VALUE_NEG_INT:
+                case VALUE_BOOL:
+                    return reader.readVarint64();
+                default:
+                    return 0;
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the value of a string property, or null if the feature does not have it or it is not a string */
+    public String getString (int keyIdx) {
+        int tag = seekValue(valueIndex(keyIdx));
+        if (tag >>> 3 != VALUE_STRING) return null;
+        try {
+            int stringEnd = reader.readLengthDelimited();
+            return reader.readString(reader.pos, stringEnd);
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public boolean getBoolean (int keyIdx) {
+        return getLong(keyIdx) != 0;
+    }
+
+    /** @return true if this feature does not have a value for the given key */
+    public boolean isNull (int keyIdx) {
+        return seekValue(valueIndex(keyIdx)) == 0;
+    }
+
+    public long getLong (String key) {
+        return getLong(cursor.keyIndex(key));
+    }
+
+    public double getDouble (String key) {
+        return getDouble(cursor.keyIndex(key));
+    }
+
+    public String getString (String key) {
+        return getString(cursor.keyIndex(key));
+    }
+
+    public boolean getBoolean (String key) {
+        return getBoolean(cursor.keyIndex(key));
+    }
+
+    public boolean isNull (String key) {
+        return isNull(cursor.keyIndex(key));
+    }
+
+    /** @return the field number of the value for the given key (VALUE_STRING etc.), or 0 if there is no value */
+    int valueType (int keyIdx) {
+        return seekValue(valueIndex(keyIdx)) >>> 3;
+    }
+
+    /** @return true if the value for the given key is a string equal to the given UTF-8 bytes, without decoding it */
+    boolean stringEquals (int keyIdx, byte[] utf8) {
+        int tag = seekValue(valueIndex(keyIdx));
+        if (tag >>> 3 != VALUE_STRING) return false;
+        try {
+            int stringEnd = reader.readLengthDelimited();
+            return reader.bytesEqual(reader.pos, stringEnd, utf8);
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the UTF-8 bytes of a string value as a slice of the underlying buffer, or null if it is not a string */
+    ByteBuffer stringBytes (int keyIdx) {
+        int tag = seekValue(valueIndex(keyIdx));
+        if (tag >>> 3 != VALUE_STRING) return null;
+        try {
+            int stringEnd = reader.readLengthDelimited();
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(stringEnd).position(reader.pos);
+            return slice;
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Position the reader at the contents of a Value message and return the tag of the value it holds, or 0 if
+     * valueIdx is -1 or the value is empty. Unsupported value types (JSON) are skipped.
+     */
+    private int seekValue (int valueIdx) {
+        if (valueIdx == -1) return 0;
+        try {
+            reader.reset(buffer, valueStarts[valueIdx], valueEnds[valueIdx]);
+            for (int tag = reader.readTag(); tag != 0; tag = reader.readTag()) {
+                int field = tag >>> 3;
+                if (field >= VALUE_STRING && field <= VALUE_BOOL) return tag;
+                reader.skipField(tag);
+            }
+            return 0;
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** decode a Value message, boxing it as GeobufFeature does */
+    private Object decodeValue (int valueIdx) {
+        try {
+            reader.reset(buffer, valueStarts[valueIdx], valueEnds[valueIdx]);
+            Object value = null;
+            for (int tag = reader.readTag(); tag != 0; tag = reader.readTag()) {
+                switch (tag >>> 3) {
+                    case VALUE_STRING:
+                        int stringEnd = reader.readLengthDelimited();
+                        value = reader.readString(reader.pos, stringEnd);
+                        reader.pos = stringEnd;
+                        break;
+                    case VALUE_DOUBLE:
+                        value = reader.readDouble();
+                        break;
+                    case VALUE_POS_INT:
+                    case VALUE_NEG_INT:
+                        value = reader.readVarint64();
+                        break;
+                    case VALUE_BOOL:
+                        value = reader.readVarint64() != 0;
+                        break;
+                    default:
+                        reader.skipField(tag);
+                }
+            }
+            return value;
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Decode the geometry of this feature in fixed-point coordinates, or return null if it has none */
+    public FixedPointGeometry getFixedPointGeometry () {
+        index();
+        if (geometryStart == -1) return null;
+        return FixedPointGeometry.decode(getRawGeometry(), cursor.precisionDivisor, cursor.dimensions);
+    }
+
+    /** Decode the geometry of this feature. A new geometry is created on each call. */
+    public Geometry getGeometry () {
+        index();
+        if (geometryStart == -1) return null;
+        return cursor.geometryFactory == null ?
+                GeobufFeature.decodeGeometry(getRawGeometry(), cursor.precisionDivisor, cursor.dimensions) :
+                GeobufFeature.decodeGeometry(getRawGeometry(), cursor.precisionDivisor, cursor.dimensions,
+                        cursor.geometryFactory);
+    }
+
+    /** @return the undecoded protobuf geometry */
+    Geobuf.Data.Geometry getRawGeometry () {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(geometryEnd).position(geometryStart);
+        try {
+            return Geobuf.Data.Geometry.parseFrom(ByteString.copyFrom(slice));
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the string ID of this feature, or null if it has a numeric ID or no ID */
+    public String getId () {
+        index();
+        return idStart == -1 ? null : reader.readString(idStart, idEnd);
+    }
+
+    public long getNumericId () {
+        index();
+        return numericId;
+    }
+
+    public boolean hasNumericId () {
+        index();
+        return hasNumericId;
+    }
+
+    /** Copy this feature into a fully decoded GeobufFeature which remains valid after the cursor moves on */
+    public GeobufFeature toFeature () {
+        index();
+        GeobufFeature feature = new GeobufFeature();
+        feature.geometry = getGeometry();
+        feature.properties = new HashMap<>();
+        for (int i = 0; i < propertyCount; i += 2) {
+            feature.properties.put(cursor.key(properties[i]), decodeValue(properties[i + 1]));
+        }
+        if (hasNumericId) feature.numericId = numericId;
+        else feature.id = getId();
+        return feature;
+    }
+}
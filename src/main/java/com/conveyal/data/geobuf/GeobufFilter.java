@@ -0,0 +1,219 @@
+package com.conveyal.data.geobuf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * A predicate on feature properties that is evaluated on encoded features, before they are decoded.
+ *
+ * Filters are compiled against the keys table of a geobuf, so each property lookup is a scan of the feature's few key
+ * indices, and values are compared in their encoded form: strings are compared as UTF-8 bytes and numbers are read
+ * without boxing. Features that are rejected are never parsed into protobuf objects and their geometries are never
+ * decoded. A feature that does not have a property does not match any comparison on that property.
+ *
+ * <pre>
+ *     GeobufFilter filter = GeobufFilter.and(
+ *             GeobufFilter.eq("landuse", "residential"),
+ *             GeobufFilter.range("population", 1000, Double.POSITIVE_INFINITY));
+ *     GeobufDecoder decoder = new GeobufDecoder(inputStream, filter);
+ * </pre>
+ */
+public abstract class GeobufFilter {
+    /** a filter bound to the key indices of a particular geobuf */
+    interface Compiled {
+        boolean test (GeobufFeatureView view);
+    }
+
+    /** Resolve keys to indices in a keys table; keyIndex returns -1 for keys that are not present */
+    abstract Compiled compile (ToIntFunction<String> keyIndex);
+
+    /**
+     * @return false if no feature in a block with the given statistics can match this filter, true if some might.
+     * Features without a property never match a comparison on it, so blocks where no feature has it are skipped too.
+     */
+    abstract boolean mightMatch (BlockStatistics stats);
+
+    /** Property equals a string, number or boolean */
+    public static GeobufFilter eq (String key, Object value) {
+        return in(key, value);
+    }
+
+    /**
+     * Property is equal to one of the given strings, numbers or booleans. Values of other types, including numbers other
+     * than Integer, Long, Float and Double, are compared as strings, as that is how GeobufEncoder writes them.
+     */
+    public static GeobufFilter in (String key, Object... values) {
+        return new In(key, Arrays.asList(values));
+    }
+
+    /** Property is a number between min and max inclusive; use infinities for open ranges */
+    public static GeobufFilter range (String key, double min, double max) {
+        return new Range(key, min, max);
+    }
+
+    public static GeobufFilter and (GeobufFilter... filters) {
+        return new Combination(Arrays.asList(filters), true);
+    }
+
+    public static GeobufFilter or (GeobufFilter... filters) {
+        return new Combination(Arrays.asList(filters), false);
+    }
+
+    public static GeobufFilter not (GeobufFilter filter) {
+        return new GeobufFilter() {
+            @Override Compiled compile (ToIntFunction<String> keyIndex) {
+                Compiled compiled = filter.compile(keyIndex);
+                return view -> !compiled.test(view);
+            }
+
+            @Override boolean mightMatch (BlockStatistics stats) {
+                // statistics say nothing about which features match, so any block might contain some that don't
+                return true;
+            }
+        };
+    }
+
+    private static class In extends GeobufFilter {
+        private final String key;
+
+        /** values split by type so they can be compared without conversion */
+        private final Set<ByteBuffer> strings = new HashSet<>();
+        private final List<String> stringValues = new ArrayList<>();
+        private final long[] longs;
+        private final double[] doubles;
+        private final boolean matchTrue, matchFalse;
+
+        In (String key, List<Object> values) {
+            this.key = key;
+
+            List<Long> longList = new ArrayList<>();
+            List<Double> doubleList = new ArrayList<>();
+            boolean matchTrue = false, matchFalse = false;
+
+            for (Object value : values) {
+                if (value instanceof String) {
+                    strings.add(ByteBuffer.wrap(((String) value).getBytes(StandardCharsets.UTF_8)));
+                    stringValues.add((String) value);
+                } else if (value instanceof Boolean) {
+                    if ((Boolean) value) matchTrue = true;
+                    else matchFalse = true;
+                } else if (value instanceof Long || value instanceof Integer) {
+                    longList.add(((Number) value).longValue());
+                    doubleList.add(((Number) value).doubleValue());
+                } else if (value instanceof Double || value instanceof Float) {
+                    double d = ((Number) value).doubleValue();
+                    doubleList.add(d);
+                    // a double with an integral value also matches an integer property
+                    if (d == Math.rint(d) && Math.abs(d) < 0x1p63) longList.add((long) d);
+                } else {
+                    // the encoder writes other types (e.g. Short or BigDecimal) with toString, so match them that way
+                    String string = value.toString();
+                    strings.add(ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8)));
+                    stringValues.add(string);
+                }
+            }
+
+            this.longs = longList.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+            this.doubles = doubleList.stream().mapToDouble(Double::doubleValue).sorted().distinct().toArray();
+            this.matchTrue = matchTrue;
+            this.matchFalse = matchFalse;
+        }
+
+        @Override Compiled compile (ToIntFunction<String> keyIndex) {
+            int keyIdx = keyIndex.applyAsInt(key);
+            if (keyIdx == -1) return view -> false;
+
+            // a single string is by far the most common case, compare it directly
+            if (strings.size() == 1 && longs.length == 0 && doubles.length == 0 && !matchTrue && !matchFalse) {
+                byte[] expected = strings.iterator().next().array();
+                return view -> view.stringEquals(keyIdx, expected);
+            }
+
+            return view -> {
+                switch (view.valueType(keyIdx)) {
+                    case VALUE_STRING:
+                        return !strings.isEmpty() && strings.contains(view.stringBytes(keyIdx));
+                    case VALUE_POS_INT:
+                    case VALUE_NEG_INT:
+                        return Arrays.binarySearch(longs, view.getLong(keyIdx)) >= 0;
+                    case VALUE_DOUBLE:
+                        return Arrays.binarySearch(doubles, view.getDouble(keyIdx)) >= 0;
+                    case VALUE_BOOL:
+                        return view.getBoolean(keyIdx) ? matchTrue : matchFalse;
+                    default:
+                        return false;
+                }
+            };
+        }
+
+        @Override boolean mightMatch (BlockStatistics stats) {
+            BlockStatistics.Column column = stats.columns.get(key);
+            if (column == null) return false;
+
+            for (String s : stringValues) if (column.mightContainString(s)) return true;
+            for (double d : doubles) if (column.mightContainNumber(d, d)) return true;
+            return matchTrue && column.mightContainNumber(1, 1) || matchFalse && column.mightContainNumber(0, 0);
+        }
+    }
+
+    private static class Range extends GeobufFilter {
+        private final String key;
+        private final double min, max;
+
+        Range (String key, double min, double max) {
+            this.key = key;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override Compiled compile (ToIntFunction<String> keyIndex) {
+            int keyIdx = keyIndex.applyAsInt(key);
+            if (keyIdx == -1) return view -> false;
+
+            return view -> {
+                int type = view.valueType(keyIdx);
+                if (type != VALUE_DOUBLE && type != VALUE_POS_INT && type != VALUE_NEG_INT) return false;
+                double val = view.getDouble(keyIdx);
+                return val >= min && val <= max;
+            };
+        }
+
+        @Override boolean mightMatch (BlockStatistics stats) {
+            BlockStatistics.Column column = stats.columns.get(key);
+            return column != null && column.mightContainNumber(min, max);
+        }
+    }
+
+    private static class Combination extends GeobufFilter {
+        private final List<GeobufFilter> filters;
+        private final boolean and;
+
+        Combination (List<GeobufFilter> filters, boolean and) {
+            this.filters = filters;
+            this.and = and;
+        }
+
+        @Override Compiled compile (ToIntFunction<String> keyIndex) {
+            Compiled[] compiled = filters.stream().map(f -> f.compile(keyIndex)).toArray(Compiled[]::new);
+
+            return view -> {
+                for (Compiled c : compiled) {
+                    // short circuit
+                    if (c.test(view) != and) return !and;
+                }
+                return and;
+            };
+        }
+
+        @Override boolean mightMatch (BlockStatistics stats) {
+            for (GeobufFilter filter : filters) {
+                if (filter.mightMatch(stats) != and) return !and;
+            }
+            return and;
+        }
+    }
+}
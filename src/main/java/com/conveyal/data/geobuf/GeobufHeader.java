@@ -0,0 +1,84 @@
+package com.conveyal.data.geobuf;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * The keys, precision and dimensions of a geobuf feature collection, read without reading the features. Feature
+ * collections are skipped over using their length, so reading the header of a large file only touches a few pages.
+ */
+final class GeobufHeader {
+    /** keys from all fragments of the file, in order */
+    final List<String> keys = new ArrayList<>();
+
+    /** number of digits after the decimal point, protobuf default */
+    int precision = 6;
+
+    int dimensions = 2;
+
+    private GeobufHeader () {}
+
+    static GeobufHeader read (File file) throws IOException {
+        GeobufHeader header = new GeobufHeader();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // not buffered, so that the channel position is always just after what has been read
+            DataInputStream is = new DataInputStream(Channels.newInputStream(channel));
+
+            for (long tag = readVarint(is, true); tag != -1; tag = readVarint(is, true)) {
+                switch ((int) (tag >>> 3)) {
+                    case DATA_KEYS:
+                        byte[] key = new byte[(int) readVarint(is, false)];
+                        is.readFully(key);
+                        header.keys.add(new String(key, StandardCharsets.UTF_8));
+                        break;
+                    case DATA_DIMENSIONS:
+                        header.dimensions = (int) readVarint(is, false);
+                        break;
+                    case DATA_PRECISION:
+                        header.precision = (int) readVarint(is, false);
+                        break;
+                    case DATA_FEATURE:
+                    case DATA_GEOMETRY:
+                        throw new UnsupportedOperationException("Geobuf is not a feature collection");
+                    default:
+                        // the feature collection and any unknown fields
+                        long skip;
+                        switch ((int) (tag & 0x7)) {
+                            case 0: readVarint(is, false); skip = 0; break;
+                            case 1: skip = 8; break;
+                            case 2: skip = readVarint(is, false); break;
+                            case 5: skip = 4; break;
+                            default: throw new IOException("Invalid wire type " + (tag & 0x7));
+                        }
+                        if (channel.position() + skip > channel.size()) throw new EOFException("Geobuf is truncated");
+                        channel.position(channel.position() + skip);
+                }
+            }
+        }
+
+        return header;
+    }
+
+    /** Read a varint, returning -1 if the end of the stream is reached before it starts and eofOk is true */
+    private static long readVarint (DataInputStream is, boolean eofOk) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b == -1) {
+                if (shift == 0 && eofOk) return -1;
+                throw new EOFException("Geobuf is truncated");
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
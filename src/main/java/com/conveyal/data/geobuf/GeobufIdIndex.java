@@ -0,0 +1,251 @@
+package com.conveyal.data.geobuf;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import geobuf.Geobuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Look up features in a geobuf feature collection by their string or numeric ID without scanning the file.
+ *
+ * The index is a sidecar file next to the geobuf (e.g. roads.geobuf.idx), holding an open-addressing hash table that
+ * maps the 64-bit hash of each ID to the position of the feature in the geobuf. Both files are memory-mapped, so
+ * opening an index is cheap and a lookup touches one or two pages of the index and then parses only the matching
+ * feature. The index is built by a single scan of the geobuf the first time it is opened, and rebuilt if the geobuf
+ * has changed since (e.g. after StreamingGeobufWriter.append). Changes are detected by the length, modification time
+ * and a checksum of the last few kilobytes of the geobuf, as with GeobufAttributeIndex, so that a rewrite of the same
+ * length within the resolution of the modification time is also noticed. Lookups are thread safe.
+ *
+ * The index file layout is:
+ * <pre>
+ *     magic (8 bytes), format version (int), geobuf length (long), geobuf last modified (long),
+ *     checksum of the end of the geobuf (long), entry count (int), slot count (int, a power of two)
+ *     for each slot: ID hash (long), feature offset (long, 0 if the slot is empty), feature length (int)
+ * </pre>
+ *
+ * Like GeobufCursor, this only supports geobufs of at most 2GB. Java cannot unmap files explicitly, so close() releases
+ * the mapped buffers to be unmapped when they are garbage collected.
+ */
+public class GeobufIdIndex implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufIdIndex.class);
+
+    static final byte[] MAGIC = { 'G', 'E', 'O', 'B', 'U', 'F', 'I', 'X' };
+
+    static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8 + 8 + 4 + 4;
+
+    private static final int SLOT_SIZE = 8 + 8 + 4;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /** null once closed */
+    private volatile ByteBuffer geobuf;
+
+    private volatile ByteBuffer index;
+
+    private final List<String> keys;
+
+    private final double precisionDivisor;
+
+    private final int dimensions;
+
+    private final int entryCount;
+
+    private final int mask;
+
+    private GeobufIdIndex (ByteBuffer geobuf, ByteBuffer index, GeobufHeader header) {
+        this.geobuf = geobuf;
+        this.index = index;
+        this.keys = header.keys;
+        this.precisionDivisor = Math.pow(10, header.precision);
+        this.dimensions = header.dimensions;
+        this.entryCount = index.getInt(HEADER_SIZE - 8);
+        this.mask = index.getInt(HEADER_SIZE - 4) - 1;
+    }
+
+    /** Open the index for a geobuf, building it first if it does not exist or is out of date */
+    public static GeobufIdIndex open (File geobuf) throws IOException {
+        File indexFile = indexFile(geobuf);
+        ByteBuffer geobufBuffer = map(geobuf);
+
+        if (!isCurrent(geobuf, geobufBuffer, indexFile)) {
+            LOG.info("Building ID index for {}", geobuf);
+            build(geobuf, indexFile);
+            geobufBuffer = map(geobuf);
+        }
+
+        return new GeobufIdIndex(geobufBuffer, map(indexFile), GeobufHeader.read(geobuf));
+    }
+
+    /** @return the sidecar file holding the index for a geobuf */
+    public static File indexFile (File geobuf) {
+        return new File(geobuf.getPath() + ".idx");
+    }
+
+    /** Scan a geobuf and write an index of its features' IDs */
+    public static void build (File geobuf, File indexFile) throws IOException {
+        // record geobuf metadata before reading, so that changes made during the scan make the index stale
+        long length = geobuf.length();
+        long lastModified = geobuf.lastModified();
+        long checksum = GeobufAttributeIndex.checksum(map(geobuf), length);
+
+        long[] hashes = new long[1024];
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int count = 0;
+
+        GeobufCursor cursor = GeobufCursor.open(geobuf);
+        GeobufFeatureView view = cursor.view();
+        while (cursor.next()) {
+            String id = view.getId();
+            if (id == null && !view.hasNumericId()) continue;
+
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+
+            hashes[count] = id != null ? hash(id) : hash(view.getNumericId());
+            offsets[count] = view.start();
+            lengths[count] = view.end() - view.start();
+            count++;
+        }
+
+        // keep the load factor at or below one half so that probe sequences stay short
+        int slotCount = Integer.highestOneBit(Math.max(count, 8) * 2 - 1) << 1;
+        if (HEADER_SIZE + (long) slotCount * SLOT_SIZE > Integer.MAX_VALUE)
+            throw new IOException("Too many features to index in " + geobuf);
+
+        // write to a temporary file and move it into place, so that readers never see a partly written index
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+
+            out.put(MAGIC);
+            out.putInt(FORMAT_VERSION);
+            out.putLong(length);
+            out.putLong(lastModified);
+            out.putLong(checksum);
+            out.putInt(count);
+            out.putInt(slotCount);
+
+            // features are inserted in file order, so duplicate IDs are found in file order
+            for (int i = 0; i < count; i++) {
+                int slot = (int) hashes[i] & (slotCount - 1);
+                while (out.getLong(slotPosition(slot) + 8) != 0) slot = (slot + 1) & (slotCount - 1);
+
+                int pos = slotPosition(slot);
+                out.putLong(pos, hashes[i]);
+                out.putLong(pos + 8, offsets[i]);
+                out.putInt(pos + 16, lengths[i]);
+            }
+
+            out.force();
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return true if the index exists and was built from the current contents of the geobuf */
+    private static boolean isCurrent (File geobuf, ByteBuffer geobufBuffer, File indexFile) throws IOException {
+        if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) return false;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0);
+        }
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        return Arrays.equals(magic, MAGIC) &&
+                header.getInt() == FORMAT_VERSION &&
+                header.getLong() == geobuf.length() &&
+                header.getLong() == geobuf.lastModified() &&
+                header.getLong() == GeobufAttributeIndex.checksum(geobufBuffer, geobufBuffer.limit());
+    }
+
+    static ByteBuffer map (File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** @return the first feature in the file with the given string ID, or null if there is none */
+    public GeobufFeature get (String id) throws IOException {
+        return find(hash(id), id, 0);
+    }
+
+    /** @return the first feature in the file with the given numeric ID, or null if there is none */
+    public GeobufFeature get (long numericId) throws IOException {
+        return find(hash(numericId), null, numericId);
+    }
+
+    /** @return the number of features with an ID */
+    public int size () {
+        return entryCount;
+    }
+
+    /** Release the mapped files. Lookups fail once the index is closed. */
+    @Override public void close () {
+        geobuf = null;
+        index = null;
+    }
+
+    private GeobufFeature find (long hash, String id, long numericId) throws IOException {
+        ByteBuffer geobuf = this.geobuf, index = this.index;
+        if (geobuf == null || index == null) throw new IllegalStateException("ID index is closed");
+
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int pos = slotPosition(slot);
+            long offset = index.getLong(pos + 8);
+            if (offset == 0) return null;
+            if (index.getLong(pos) != hash) continue;
+
+            // copy from a duplicate, as positions are not thread safe
+            byte[] bytes = new byte[index.getInt(pos + 16)];
+            ByteBuffer slice = geobuf.duplicate();
+            slice.position((int) offset);
+            slice.get(bytes);
+
+            // different IDs may have the same hash, check the ID before decoding the geometry
+            Geobuf.Data.Feature feature = Geobuf.Data.Feature.parseFrom(bytes);
+            boolean match = id != null ?
+                    feature.hasId() && id.equals(feature.getId()) :
+                    feature.hasIntId() && feature.getIntId() == numericId;
+
+            if (match) return new GeobufFeature(feature, keys, precisionDivisor, dimensions);
+        }
+    }
+
+    private static int slotPosition (int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long hash (String id) {
+        return HASH.hashString(id, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static long hash (long numericId) {
+        return HASH.hashLong(numericId).asLong();
+    }
+}
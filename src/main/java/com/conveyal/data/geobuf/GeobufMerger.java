@@ -0,0 +1,262 @@
+package com.conveyal.data.geobuf;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import geobuf.Geobuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.conveyal.data.geobuf.GeobufDecoder.*;
+
+/**
+ * Merge geobuf feature collections into one without decoding their features.
+ *
+ * The keys tables of the inputs are read first and combined into a single table. Each feature is then copied byte for
+ * byte, except that the key indices in its properties are rewritten to point into the combined table; geometries and
+ * values are never decoded. Inputs are rewritten in parallel and written in order. The output is a header with the
+ * combined keys followed by one feature collection fragment per input, which protobuf merges into a single feature
+ * collection.
+ *
+ * Since coordinates are copied as-is, all inputs must have the same precision and dimensions. Each input's features
+ * are held in memory while it is rewritten, so no single input may be larger than 2GB.
+ *
+ * Usage: GeobufMerger output.geobuf input.geobuf [input.geobuf . . .]
+ */
+public class GeobufMerger {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufMerger.class);
+
+    public static void main (String... args) throws Exception {
+        List<File> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) inputs.add(new File(args[i]));
+        long count = merge(inputs, new File(args[0]), Runtime.getRuntime().availableProcessors());
+        LOG.info("Merged {} features from {} files into {}", count, inputs.size(), args[0]);
+    }
+
+    /**
+     * Merge inputs into output, rewriting up to threads inputs at a time.
+     * @return the number of features in the output
+     */
+    public static long merge (List<File> inputs, File output, int threads) throws IOException, InterruptedException {
+        if (inputs.isEmpty()) throw new IllegalArgumentException("No geobufs to merge");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            // read the headers in parallel, as with many small inputs this is mostly seeking
+            List<Future<GeobufHeader>> headerFutures = new ArrayList<>();
+            for (File input : inputs) headerFutures.add(executor.submit(() -> GeobufHeader.read(input)));
+
+            List<GeobufHeader> headers = new ArrayList<>();
+            for (Future<GeobufHeader> future : headerFutures) headers.add(get(future));
+
+            // combine keys in order of first appearance, and find where each input's keys end up
+            List<String> keys = new ArrayList<>();
+            Map<String, Integer> keyIndices = new HashMap<>();
+            List<int[]> remaps = new ArrayList<>();
+
+            for (int i = 0; i < inputs.size(); i++) {
+                GeobufHeader header = headers.get(i);
+                GeobufHeader first = headers.get(0);
+
+                if (header.precision != first.precision || header.dimensions != first.dimensions) {
+                    throw new IllegalArgumentException(String.format(
+                            "%s has precision %d and %d dimensions, but %s has precision %d and %d dimensions",
+                            inputs.get(i), header.precision, header.dimensions,
+                            inputs.get(0), first.precision, first.dimensions));
+                }
+
+                int[] remap = new int[header.keys.size()];
+                for (int k = 0; k < remap.length; k++) {
+                    String key = header.keys.get(k);
+                    Integer idx = keyIndices.get(key);
+                    if (idx == null) {
+                        idx = keys.size();
+                        keys.add(key);
+                        keyIndices.put(key, idx);
+                    }
+                    remap[k] = idx;
+                }
+                remaps.add(remap);
+            }
+
+            long featureCount = 0;
+
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
+                Geobuf.Data.newBuilder()
+                        .addAllKeys(keys)
+                        .setPrecision(headers.get(0).precision)
+                        .setDimensions(headers.get(0).dimensions)
+                        .setFeatureCollection(Geobuf.Data.FeatureCollection.newBuilder())
+                        .build()
+                        .writeTo(os);
+
+                // rewrite inputs in parallel, but only a few more than are being rewritten at once, to limit memory use
+                Deque<Future<Rewritten>> pending = new ArrayDeque<>();
+                int submitted = 0;
+
+                while (submitted < inputs.size() || !pending.isEmpty()) {
+                    while (submitted < inputs.size() && pending.size() < threads * 2) {
+                        File input = inputs.get(submitted);
+                        int[] remap = remaps.get(submitted);
+                        pending.add(executor.submit(() -> rewrite(input, remap)));
+                        submitted++;
+                    }
+
+                    Rewritten rewritten = get(pending.poll());
+
+                    CodedOutputStream cos = CodedOutputStream.newInstance(os);
+                    cos.writeTag(DATA_FEATURE_COLLECTION, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    cos.writeRawVarint32(rewritten.bytes.size());
+                    cos.flush();
+                    rewritten.bytes.writeTo(os);
+
+                    featureCount += rewritten.featureCount;
+                    GeobufMetrics.count(GeobufMetrics.ENCODE_BYTES, rewritten.bytes.size());
+                }
+            }
+
+            return featureCount;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T get (Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else throw new RuntimeException(cause);
+        }
+    }
+
+    /** the body of a feature collection containing the features of one input, with rewritten key indices */
+    private static class Rewritten {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long featureCount = 0;
+    }
+
+    /** Copy the features of an input, rewriting their key indices */
+    private static Rewritten rewrite (File input, int[] remap) throws IOException {
+        Rewritten result = new Rewritten();
+        CodedOutputStream out = CodedOutputStream.newInstance(result.bytes);
+
+        // reused for each feature
+        FeatureRewriter rewriter = new FeatureRewriter(remap);
+
+        try (InputStream is = new BufferedInputStream(new FileInputStream(input))) {
+            CodedInputStream in = CodedInputStream.newInstance(is);
+            in.setSizeLimit(DEFAULT_SIZE_LIMIT);
+
+            while (true) {
+                in.resetSizeCounter();
+                int tag = in.readTag();
+                int field = WireFormat.getTagFieldNumber(tag);
+
+                if (field == 0) {
+                    break;
+                } else if (field == DATA_FEATURE_COLLECTION) {
+                    long remaining = in.readRawVarint64();
+
+                    while (remaining > 0) {
+                        in.resetSizeCounter();
+                        int fcTag = in.readTag();
+
+                        if (WireFormat.getTagFieldNumber(fcTag) == FEATURE_COLLECTION_FEATURES) {
+                            byte[] feature = in.readRawBytes(in.readRawVarint32());
+                            ByteArrayOutputStream rewritten = rewriter.rewrite(feature);
+                            out.writeTag(FEATURE_COLLECTION_FEATURES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                            out.writeRawVarint32(rewritten.size());
+                            out.flush();
+                            rewritten.writeTo(result.bytes);
+                            result.featureCount++;
+                        } else {
+                            // feature collection values and custom properties are not supported
+                            in.skipField(fcTag);
+                        }
+
+                        remaining -= in.getTotalBytesRead();
+                    }
+
+                    if (remaining < 0) throw new IOException("Feature extends past end of feature collection in " + input);
+                } else if (field == DATA_FEATURE || field == DATA_GEOMETRY) {
+                    throw new UnsupportedOperationException(input + " is not a feature collection");
+                } else {
+                    // keys, precision and dimensions have already been read
+                    in.skipField(tag);
+                }
+            }
+        }
+
+        out.flush();
+        return result;
+    }
+
+    /** Rewrite the key indices in the properties of encoded features, copying all other fields unchanged */
+    private static class FeatureRewriter {
+        private final int[] remap;
+        private final WireReader reader = new WireReader();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+        private final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        private final CodedOutputStream packedOut = CodedOutputStream.newInstance(packed);
+
+        FeatureRewriter (int[] remap) {
+            this.remap = remap;
+        }
+
+        /** @return the rewritten feature, in a buffer that is reused by the next call */
+        ByteArrayOutputStream rewrite (byte[] feature) throws IOException {
+            buffer.reset();
+            ByteBuffer buf = ByteBuffer.wrap(feature);
+            reader.reset(buf, 0, feature.length);
+
+            // properties alternate key index, value index, and may be split over several fields
+            int propertyIdx = 0;
+
+            for (int tag = reader.readTag(); tag != 0; tag = reader.readTag()) {
+                int start = reader.pos;
+
+                if (tag >>> 3 == FEATURE_PROPERTIES) {
+                    if ((tag & 0x7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                        int end = reader.readLengthDelimited();
+                        packed.reset();
+                        while (reader.pos < end) {
+                            int val = reader.readVarint32();
+                            packedOut.writeUInt32NoTag(propertyIdx++ % 2 == 0 ? remapKey(val) : val);
+                        }
+                        packedOut.flush();
+                        out.writeTag(FEATURE_PROPERTIES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                        out.writeRawVarint32(packed.size());
+                        out.flush();
+                        packed.writeTo(buffer);
+                    } else {
+                        int val = reader.readVarint32();
+                        out.writeUInt32(FEATURE_PROPERTIES, propertyIdx++ % 2 == 0 ? remapKey(val) : val);
+                    }
+                } else {
+                    // copy the tag and field as they are
+                    reader.skipField(tag);
+                    out.writeRawVarint32(tag);
+                    out.writeRawBytes(feature, start, reader.pos - start);
+                }
+            }
+
+            out.flush();
+            return buffer;
+        }
+
+        private int remapKey (int keyIdx) throws IOException {
+            if (keyIdx < 0 || keyIdx >= remap.length) throw new IOException("Key index " + keyIdx + " out of range");
+            return remap[keyIdx];
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.conveyal.data.geobuf;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional instrumentation of the encoder, decoder and MapDB serializer.
+ *
+ * Nothing is recorded until a Registry is bound with bind(). Instrumented code checks enabled() before doing any work
+ * (even reading the clock), so when no registry is bound the only cost is a single volatile read per feature. Bind an
+ * adapter to whatever metrics library is in use, or use the SimpleRegistry included here.
+ *
+ * Counters are monotonically increasing totals (rates such as features per second can be derived from them), while
+ * histogram values are individual observations, e.g. the time taken to encode one geometry.
+ */
+public final class GeobufMetrics {
+    // counters
+    public static final String ENCODE_FEATURES = "geobuf.encode.features";
+    public static final String ENCODE_VERTICES = "geobuf.encode.vertices";
+    public static final String ENCODE_BYTES = "geobuf.encode.bytes";
+    /** properties of unsupported types that were written using toString() */
+    public static final String ENCODE_TOSTRING_FALLBACKS = "geobuf.encode.toStringFallbacks";
+    public static final String DECODE_FEATURES = "geobuf.decode.features";
+    public static final String DECODE_VERTICES = "geobuf.decode.vertices";
+    public static final String DECODE_BYTES = "geobuf.decode.bytes";
+    /** features rejected by a GeobufFilter before being decoded */
+    public static final String DECODE_FILTERED = "geobuf.decode.filtered";
+    /** blocks of a block-compressed geobuf skipped because their statistics could not match a query */
+    public static final String DECODE_BLOCKS_SKIPPED = "geobuf.decode.blocksSkipped";
+    public static final String SERIALIZER_BYTES_WRITTEN = "geobuf.serializer.bytesWritten";
+    public static final String SERIALIZER_BYTES_READ = "geobuf.serializer.bytesRead";
+
+    // histograms, all in nanoseconds; geometry timings have the geometry type appended, e.g. geobuf.encode.geometryNanos.Polygon
+    public static final String ENCODE_GEOMETRY_NANOS = "geobuf.encode.geometryNanos";
+    public static final String DECODE_GEOMETRY_NANOS = "geobuf.decode.geometryNanos";
+    public static final String SERIALIZE_NANOS = "geobuf.serializer.serializeNanos";
+    public static final String DESERIALIZE_NANOS = "geobuf.serializer.deserializeNanos";
+
+    /** histogram names by geometry type, so they are not concatenated for every feature */
+    private static final Map<String, String> ENCODE_GEOMETRY_NAMES = new ConcurrentHashMap<>();
+    private static final Map<String, String> DECODE_GEOMETRY_NAMES = new ConcurrentHashMap<>();
+
+    private static volatile Registry registry;
+
+    private GeobufMetrics() {}
+
+    /** Start recording metrics to the given registry */
+    public static void bind (Registry registry) {
+        GeobufMetrics.registry = registry;
+    }
+
+    /** Stop recording metrics */
+    public static void unbind () {
+        registry = null;
+    }
+
+    /** @return true if a registry is bound. Check this before computing anything that is only needed for metrics. */
+    public static boolean enabled () {
+        return registry != null;
+    }
+
+    static void count (String name, long delta) {
+        Registry r = registry;
+        if (r != null) r.count(name, delta);
+    }
+
+    static void record (String name, long value) {
+        Registry r = registry;
+        if (r != null) r.record(name, value);
+    }
+
+    /** @return the name of the encode timing histogram for a geometry type, e.g. Polygon */
+    static String encodeGeometryNanos (String geometryType) {
+        return ENCODE_GEOMETRY_NAMES.computeIfAbsent(geometryType, t -> ENCODE_GEOMETRY_NANOS + "." + t);
+    }
+
+    /** @return the name of the decode timing histogram for a geometry type, e.g. Polygon */
+    static String decodeGeometryNanos (String geometryType) {
+        return DECODE_GEOMETRY_NAMES.computeIfAbsent(geometryType, t -> DECODE_GEOMETRY_NANOS + "." + t);
+    }
+
+    /** Somewhere to send metrics. Implementations must be threadsafe. */
+    public interface Registry {
+        /** Add delta to a counter */
+        void count (String name, long delta);
+
+        /** Record an observation in a histogram */
+        void record (String name, long value);
+    }
+
+    /** A minimal in-memory registry, keeping totals for counters and count, sum, min and max for histograms */
+    public static class SimpleRegistry implements Registry {
+        private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+        private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+        @Override public void count(String name, long delta) {
+            counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+        }
+
+        @Override public void record(String name, long value) {
+            histograms.computeIfAbsent(name, n -> new Histogram()).add(value);
+        }
+
+        public long getCount (String name) {
+            LongAdder counter = counters.get(name);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        /** @return the histogram with the given name, or null if nothing has been recorded */
+        public Histogram getHistogram (String name) {
+            return histograms.get(name);
+        }
+
+        public static class Histogram {
+            private final LongAdder count = new LongAdder();
+            private final LongAdder sum = new LongAdder();
+            private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+            private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+            void add (long value) {
+                count.increment();
+                sum.add(value);
+                min.accumulate(value);
+                max.accumulate(value);
+            }
+
+            public long count () {
+                return count.sum();
+            }
+
+            public long sum () {
+                return sum.sum();
+            }
+
+            public long min () {
+                return min.get();
+            }
+
+            public long max () {
+                return max.get();
+            }
+
+            public double mean () {
+                long n = count.sum();
+                return n == 0 ? Double.NaN : (double) sum.sum() / n;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.conveyal.data.geobuf;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publish the features of a geobuf to a single reactive-streams subscriber.
+ *
+ * Features are only decoded when the subscriber has requested them, so a slow subscriber holds back reading rather than
+ * causing features to pile up in memory. Decoding and signals to the subscriber happen on the given executor, one task
+ * at a time. The source (a GeobufDecoder, AsyncGeobufReader or any other iterator of features) is closed on completion,
+ * error or cancellation if it is Closeable.
+ */
+public class GeobufPublisher implements Flow.Publisher<GeobufFeature> {
+    private final Iterator<GeobufFeature> source;
+
+    private final Executor executor;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public GeobufPublisher (Iterator<GeobufFeature> source, Executor executor) {
+        this.source = source;
+        this.executor = executor;
+    }
+
+    @Override public void subscribe (Flow.Subscriber<? super GeobufFeature> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            // a geobuf stream can only be read once
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request (long n) {}
+                @Override public void cancel () {}
+            });
+            subscriber.onError(new IllegalStateException("GeobufPublisher only supports a single subscriber"));
+            return;
+        }
+
+        GeobufSubscription subscription = new GeobufSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class GeobufSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super GeobufFeature> subscriber;
+
+        /** features requested but not yet delivered */
+        private final AtomicLong demand = new AtomicLong();
+
+        /** ensures only one drain task runs at a time */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled = false;
+
+        /** error from an invalid request, delivered from the drain task to keep signals serial */
+        private volatile Throwable pendingError;
+
+        private boolean finished = false;
+
+        GeobufSubscription (Flow.Subscriber<? super GeobufFeature> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override public void request (long n) {
+            if (n <= 0) {
+                pendingError = new IllegalArgumentException("Request for " + n + " features, must be positive");
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> {
+                    long sum = current + added;
+                    // cap at Long.MAX_VALUE, which means unbounded
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+
+            schedule();
+        }
+
+        @Override public void cancel () {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule () {
+            if (wip.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        /** Deliver as many features as have been requested */
+        @Override public void run () {
+            int missed = 1;
+
+            while (true) {
+                if (!finished) drain();
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private void drain () {
+            try {
+                while (!cancelled) {
+                    if (pendingError != null) {
+                        finish();
+                        subscriber.onError(pendingError);
+                        return;
+                    }
+
+                    if (!source.hasNext()) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    long requested = demand.get();
+                    if (requested == 0) return;
+
+                    subscriber.onNext(source.next());
+
+                    if (requested != Long.MAX_VALUE) demand.decrementAndGet();
+                }
+
+                finish();
+            } catch (RuntimeException e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        private void finish () {
+            finished = true;
+            cancelled = true;
+            if (source instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) source).close();
+                } catch (Exception e) {
+                    // nothing more can be done, and the subscriber is being signalled anyhow
+                }
+            }
+        }
+    }
+}
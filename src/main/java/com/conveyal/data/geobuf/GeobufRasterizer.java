@@ -0,0 +1,410 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rasterize the polygons in a geobuf onto a grid of Web Mercator pixels, computing exactly how much of each pixel each
+ * polygon covers.
+ *
+ * Polygons are rasterized straight from the fixed-point coordinates in the encoded geometries, which are projected to
+ * pixel coordinates as they are read; no JTS geometries are created. Coverage is computed with a signed-area
+ * accumulation buffer: each edge adds the area between it and the right edge of the row to the cells it crosses, and a
+ * running sum along each row gives the exact fraction of each cell inside the polygon, holes included.
+ *
+ * Polygons are read on the calling thread and rasterized on a fork-join pool in batches. A polygon that spans several
+ * 256 pixel tiles of the grid is further split into a task per tile, so a single large polygon is also rasterized in
+ * parallel. Each task accumulates into a buffer covering only its part of the grid, which is added to the grid while
+ * holding the lock for that tile.
+ */
+public class GeobufRasterizer {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufRasterizer.class);
+
+    public static final int TILE_SIZE = 256;
+
+    private static final int BATCH_SIZE = 256;
+
+    /** A dense grid of Web Mercator pixels at a zoom level, with 256 pixels per tile */
+    public static class Grid {
+        public final int zoom;
+
+        /** pixel coordinates of the top left corner of the grid */
+        public final int west, north;
+
+        public final int width, height;
+
+        /** values of cells, row by row from the north */
+        public final double[] values;
+
+        /** one lock per tile, so tasks writing to different parts of the grid do not contend */
+        private final Object[] tileLocks;
+        private final int tilesWide;
+
+        public Grid (int zoom, int west, int north, int width, int height) {
+            this.zoom = zoom;
+            this.west = west;
+            this.north = north;
+            this.width = width;
+            this.height = height;
+            this.values = new double[width * height];
+
+            this.tilesWide = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.tileLocks = new Object[tilesWide * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+            for (int i = 0; i < tileLocks.length; i++) tileLocks[i] = new Object();
+        }
+
+        /** Create a grid covering the given WGS84 bounds */
+        public static Grid forBounds (int zoom, double minLon, double minLat, double maxLon, double maxLat) {
+            int west = (int) Math.floor(lonToPixel(minLon, zoom));
+            int north = (int) Math.floor(latToPixel(maxLat, zoom));
+            int east = (int) Math.ceil(lonToPixel(maxLon, zoom));
+            int south = (int) Math.ceil(latToPixel(minLat, zoom));
+            return new Grid(zoom, west, north, east - west, south - north);
+        }
+
+        public double get (int x, int y) {
+            return values[y * width + x];
+        }
+
+        /** @return the sum of all cells */
+        public double sum () {
+            double sum = 0;
+            for (double v : values) sum += v;
+            return sum;
+        }
+    }
+
+    /** @return the pixel x coordinate of a longitude at a zoom level */
+    public static double lonToPixel (double lon, int zoom) {
+        return (lon + 180) / 360 * TILE_SIZE * Math.pow(2, zoom);
+    }
+
+    /** @return the pixel y coordinate of a latitude at a zoom level, increasing to the south */
+    public static double latToPixel (double lat, int zoom) {
+        lat = Math.max(-GeobufTiler.MAX_LAT, Math.min(GeobufTiler.MAX_LAT, lat));
+        double sin = Math.sin(Math.toRadians(lat));
+        return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * TILE_SIZE * Math.pow(2, zoom);
+    }
+
+    /**
+     * Rasterize the polygons and multipolygons in a geobuf onto a grid, adding to any values already in it. If
+     * weightProperty is null, each cell receives the fraction of it covered by polygons. Otherwise the value of that
+     * numeric property is distributed over the cells each polygon covers in proportion to the area it covers, e.g. the
+     * population of each census block; features without the property are skipped. Parts of polygons outside the grid
+     * are lost.
+     *
+     * @return the number of polygons rasterized
+     */
+    public static long rasterize (File geobuf, Grid grid, String weightProperty, ForkJoinPool pool) throws IOException {
+        long count = 0;
+        long start = System.nanoTime();
+
+        try (InputStream is = new BufferedInputStream(new FileInputStream(geobuf))) {
+            GeobufDecoder decoder = new GeobufDecoder(is);
+            int weightKey = -1;
+            int keyCount = -1;
+
+            Deque<ForkJoinTask<?>> pending = new ArrayDeque<>();
+            List<Polygon> batch = new ArrayList<>(BATCH_SIZE);
+
+            for (Geobuf.Data.Feature feature = decoder.peekRaw(); feature != null; feature = decoder.peekRaw()) {
+                if (decoder.keys.size() != keyCount) {
+                    keyCount = decoder.keys.size();
+                    weightKey = weightProperty == null ? -1 : decoder.keys.indexOf(weightProperty);
+                }
+
+                Geobuf.Data.Geometry.Type type = feature.getGeometry().getType();
+                if (type == Geobuf.Data.Geometry.Type.POLYGON || type == Geobuf.Data.Geometry.Type.MULTIPOLYGON) {
+                    double weight = 1;
+                    if (weightProperty != null) weight = weight(feature, weightKey);
+
+                    if (!Double.isNaN(weight)) {
+                        batch.add(new Polygon(feature.getGeometry(), weight, decoder.precisionDivisor,
+                                decoder.dimensions));
+                        count++;
+                    }
+                }
+
+                if (batch.size() == BATCH_SIZE) {
+                    pending.add(pool.submit(new BatchTask(batch, grid, weightProperty != null)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    // don't read too far ahead of the pool
+                    while (pending.size() > pool.getParallelism() * 4) pending.poll().join();
+                }
+
+                decoder.skip();
+            }
+
+            if (!batch.isEmpty()) pending.add(pool.submit(new BatchTask(batch, grid, weightProperty != null)));
+            while (!pending.isEmpty()) pending.poll().join();
+        }
+
+        LOG.info("Rasterized {} polygons in {} ms", count, (System.nanoTime() - start) / 1_000_000);
+        return count;
+    }
+
+    /** @return the numeric value of a property of an encoded feature, or NaN if it does not have one */
+    private static double weight (Geobuf.Data.Feature feature, int keyIdx) {
+        for (int i = 0; i < feature.getPropertiesCount(); i += 2) {
+            if (feature.getProperties(i) != keyIdx) continue;
+
+            Geobuf.Data.Value value = feature.getValues(feature.getProperties(i + 1));
+            if (value.hasDoubleValue()) return value.getDoubleValue();
+            else if (value.hasPosIntValue()) return value.getPosIntValue();
+            else if (value.hasNegIntValue()) return value.getNegIntValue();
+            else return Double.NaN;
+        }
+        return Double.NaN;
+    }
+
+    /** An encoded polygon or multipolygon, projected when it is rasterized */
+    private static class Polygon {
+        final Geobuf.Data.Geometry geometry;
+        final double weight;
+        final double precisionDivisor;
+        final int dimensions;
+
+        Polygon (Geobuf.Data.Geometry geometry, double weight, double precisionDivisor, int dimensions) {
+            this.geometry = geometry;
+            this.weight = weight;
+            this.precisionDivisor = precisionDivisor;
+            this.dimensions = dimensions;
+        }
+    }
+
+    /** A polygon's rings in pixel coordinates relative to the grid */
+    private static class Rings {
+        final List<double[]> xs = new ArrayList<>();
+        final List<double[]> ys = new ArrayList<>();
+
+        /** multiplier for each ring, so that shells add coverage and holes remove it whichever way they wind */
+        final List<Double> signs = new ArrayList<>();
+
+        /** net area in pixels */
+        double area;
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        /** Project the rings of a polygon or multipolygon, reading them from its fixed-point coordinates */
+        Rings (Polygon polygon, Grid grid) {
+            FixedPointGeometry geom =
+                    FixedPointGeometry.decode(polygon.geometry, polygon.precisionDivisor, polygon.dimensions);
+            for (int ring = 0; ring < geom.getNumRings(); ring++) {
+                addRing(geom, ring, polygon.precisionDivisor, grid);
+            }
+        }
+
+        private void addRing (FixedPointGeometry geom, int ring, double precisionDivisor, Grid grid) {
+            int start = geom.ringOffsets[ring];
+            int ncoord = geom.ringOffsets[ring + 1] - start;
+            double[] x = new double[ncoord];
+            double[] y = new double[ncoord];
+
+            for (int i = 0; i < ncoord; i++) {
+                x[i] = lonToPixel(geom.getX(start + i) / precisionDivisor, grid.zoom) - grid.west;
+                y[i] = latToPixel(geom.getY(start + i) / precisionDivisor, grid.zoom) - grid.north;
+
+                minX = Math.min(minX, x[i]);
+                maxX = Math.max(maxX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+
+            // the last coordinate is omitted, as it is the same as the first
+            double signedArea = 0;
+            for (int i = 0, j = ncoord - 1; i < ncoord; j = i++) signedArea += x[j] * y[i] - x[i] * y[j];
+            signedArea /= 2;
+
+            // with y pointing down, a ring with positive signed area accumulates negative coverage
+            boolean shell = geom.isShell(ring);
+            double sign = Math.signum(signedArea) * (shell ? -1 : 1);
+            area += shell ? Math.abs(signedArea) : -Math.abs(signedArea);
+
+            xs.add(x);
+            ys.add(y);
+            signs.add(sign);
+        }
+    }
+
+    /** Rasterize a batch of polygons */
+    private static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Polygon> polygons;
+        private final Grid grid;
+        private final boolean weighted;
+
+        BatchTask (List<Polygon> polygons, Grid grid, boolean weighted) {
+            this.polygons = polygons;
+            this.grid = grid;
+            this.weighted = weighted;
+        }
+
+        @Override protected void compute () {
+            for (Polygon polygon : polygons) {
+                Rings rings = new Rings(polygon, grid);
+                if (rings.area <= 0) continue;
+
+                // weighted polygons distribute their weight over their area, otherwise cells receive coverage
+                double scale = weighted ? polygon.weight / rings.area : 1;
+
+                int minCol = Math.max(0, (int) Math.floor(rings.minX));
+                int maxCol = Math.min(grid.width, (int) Math.ceil(rings.maxX));
+                int minRow = Math.max(0, (int) Math.floor(rings.minY));
+                int maxRow = Math.min(grid.height, (int) Math.ceil(rings.maxY));
+                if (minCol >= maxCol || minRow >= maxRow) continue;
+
+                // split polygons that span several tiles into a task per tile
+                List<TileTask> tiles = new ArrayList<>();
+                for (int tileY = minRow / TILE_SIZE; tileY * TILE_SIZE < maxRow; tileY++) {
+                    for (int tileX = minCol / TILE_SIZE; tileX * TILE_SIZE < maxCol; tileX++) {
+                        tiles.add(new TileTask(rings, grid, scale, tileX, tileY,
+                                Math.max(minCol, tileX * TILE_SIZE), Math.max(minRow, tileY * TILE_SIZE),
+                                Math.min(maxCol, (tileX + 1) * TILE_SIZE), Math.min(maxRow, (tileY + 1) * TILE_SIZE)));
+                    }
+                }
+
+                if (tiles.size() == 1) tiles.get(0).compute();
+                else invokeAll(tiles);
+            }
+        }
+    }
+
+    /** Rasterize the part of a polygon in one window of the grid, which is within a single tile */
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Rings rings;
+        private final Grid grid;
+        private final double scale;
+        private final int tileX, tileY;
+        private final int col0, row0, width, height;
+
+        /** signed area accumulation buffer, with two extra columns for edges at and beyond the right edge */
+        private double[] acc;
+        private int stride;
+
+        TileTask (Rings rings, Grid grid, double scale, int tileX, int tileY, int col0, int row0, int col1, int row1) {
+            this.rings = rings;
+            this.grid = grid;
+            this.scale = scale;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.col0 = col0;
+            this.row0 = row0;
+            this.width = col1 - col0;
+            this.height = row1 - row0;
+        }
+
+        @Override protected void compute () {
+            stride = width + 2;
+            acc = new double[stride * height];
+
+            for (int r = 0; r < rings.xs.size(); r++) {
+                double[] x = rings.xs.get(r);
+                double[] y = rings.ys.get(r);
+                double sign = rings.signs.get(r);
+                for (int i = 0, j = x.length - 1; i < x.length; j = i++) {
+                    edge(x[j] - col0, y[j] - row0, x[i] - col0, y[i] - row0, sign);
+                }
+            }
+
+            synchronized (grid.tileLocks[tileY * grid.tilesWide + tileX]) {
+                for (int row = 0; row < height; row++) {
+                    double coverage = 0;
+                    int out = (row0 + row) * grid.width + col0;
+                    for (int col = 0; col < width; col++) {
+                        coverage += acc[row * stride + col];
+                        if (coverage != 0) grid.values[out + col] += coverage * scale;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add an edge, splitting it where it crosses the left and right sides of the window. Parts beyond the sides are
+         * moved onto them, which leaves the coverage of cells within the window unchanged.
+         */
+        private void edge (double x0, double y0, double x1, double y1, double sign) {
+            for (double side : new double[] { 0, width }) {
+                if ((x0 - side) * (x1 - side) < 0) {
+                    double y = y0 + (side - x0) / (x1 - x0) * (y1 - y0);
+                    edge(x0, y0, side, y, sign);
+                    edge(side, y, x1, y1, sign);
+                    return;
+                }
+            }
+
+            line(Math.max(0, Math.min(width, x0)), y0, Math.max(0, Math.min(width, x1)), y1, sign);
+        }
+
+        /** Accumulate the signed area to the right of a line within the window, see font-rs */
+        private void line (double x0, double y0, double x1, double y1, double sign) {
+            if (y0 == y1) return;
+
+            double dir = sign;
+            if (y0 > y1) {
+                dir = -sign;
+                double t = x0; x0 = x1; x1 = t;
+                t = y0; y0 = y1; y1 = t;
+            }
+
+            double dxdy = (x1 - x0) / (y1 - y0);
+            double x = x0;
+            if (y0 < 0) x -= y0 * dxdy;
+
+            int lastRow = (int) Math.min(height, Math.ceil(y1));
+            for (int row = (int) Math.max(0, Math.floor(y0)); row < lastRow; row++) {
+                int rowStart = row * stride;
+                double dy = Math.min(row + 1, y1) - Math.max(row, y0);
+                double xnext = x + dxdy * dy;
+                double d = dy * dir;
+
+                double xa = Math.min(x, xnext), xb = Math.max(x, xnext);
+                double xaFloor = Math.floor(xa);
+                int xai = (int) xaFloor;
+                double xbCeil = Math.ceil(xb);
+                int xbi = (int) xbCeil;
+
+                if (xbi <= xai + 1) {
+                    // within a single cell
+                    double xmf = 0.5 * (x + xnext) - xaFloor;
+                    acc[rowStart + xai] += d - d * xmf;
+                    acc[rowStart + xai + 1] += d * xmf;
+                } else {
+                    double s = 1 / (xb - xa);
+                    double xaf = xa - xaFloor;
+                    double a0 = 0.5 * s * (1 - xaf) * (1 - xaf);
+                    double xbf = xb - xbCeil + 1;
+                    double am = 0.5 * s * xbf * xbf;
+                    acc[rowStart + xai] += d * a0;
+
+                    if (xbi == xai + 2) {
+                        acc[rowStart + xai + 1] += d * (1 - a0 - am);
+                    } else {
+                        double a1 = s * (1.5 - xaf);
+                        acc[rowStart + xai + 1] += d * (a1 - a0);
+                        for (int xi = xai + 2; xi < xbi - 1; xi++) acc[rowStart + xi] += d * s;
+                        double a2 = a1 + (xbi - xai - 3) * s;
+                        acc[rowStart + xbi - 1] += d * (1 - a2 - am);
+                    }
+
+                    acc[rowStart + xbi] += d * am;
+                }
+
+                x = xnext;
+            }
+        }
+    }
+}
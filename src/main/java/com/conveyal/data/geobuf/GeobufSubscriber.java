@@ -0,0 +1,101 @@
+package com.conveyal.data.geobuf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * A reactive-streams subscriber that writes features to a StreamingGeobufWriter as they arrive.
+ *
+ * Features are requested in batches, so at most one batch is waiting to be written at any time. The writer is closed
+ * when the stream completes or fails; getResult() completes with the number of features written, or exceptionally if
+ * the stream or the writer failed.
+ */
+public class GeobufSubscriber implements Flow.Subscriber<GeobufFeature> {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufSubscriber.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final StreamingGeobufWriter writer;
+
+    private final int batchSize;
+
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+    private Flow.Subscription subscription;
+
+    /** features received from the current request */
+    private int received = 0;
+
+    public GeobufSubscriber (StreamingGeobufWriter writer, int batchSize) {
+        this.writer = writer;
+        this.batchSize = batchSize;
+    }
+
+    public GeobufSubscriber (StreamingGeobufWriter writer) {
+        this(writer, DEFAULT_BATCH_SIZE);
+    }
+
+    @Override public void onSubscribe (Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            // subscribers may only be subscribed once
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override public void onNext (GeobufFeature feature) {
+        if (result.isDone()) return;
+
+        try {
+            writer.add(feature);
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+
+        if (++received == batchSize) {
+            received = 0;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override public void onError (Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override public void onComplete () {
+        if (result.isDone()) return;
+
+        try {
+            writer.close();
+            result.complete(writer.getFeatureCount());
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void fail (Throwable throwable) {
+        if (result.isDone()) return;
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing writer after stream failed", e);
+        }
+
+        result.completeExceptionally(throwable);
+    }
+
+    /** @return a future that completes with the number of features written once the stream has been written */
+    public CompletableFuture<Long> getResult () {
+        return result;
+    }
+}
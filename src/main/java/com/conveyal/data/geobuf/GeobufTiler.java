@@ -0,0 +1,330 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cut a geobuf into Mapbox Vector Tiles.
+ *
+ * Features are read once from a GeobufDecoder and projected to Web Mercator. Each zoom level is then tiled in parallel:
+ * every tile clips the features whose envelopes touch it, quantizes them to the tile extent and encodes them with a
+ * VectorTileEncoder. Tiles are written to a TileSink, e.g. a z/x/y directory tree or an MBTiles database.
+ */
+public class GeobufTiler {
+    private static final Logger LOG = LoggerFactory.getLogger(GeobufTiler.class);
+
+    /** Web Mercator is undefined at the poles, clamp to the usual limit */
+    static final double MAX_LAT = 85.0511287798066;
+
+    public final String layerName;
+
+    public final int minZoom, maxZoom;
+
+    /** tile extent in pixels */
+    public int extent = 4096;
+
+    /** how far beyond the tile edge to clip, in pixels, so that strokes at tile edges render correctly */
+    public int buffer = 64;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    public GeobufTiler (String layerName, int minZoom, int maxZoom) {
+        if (minZoom < 0 || maxZoom > 24 || minZoom > maxZoom)
+            throw new IllegalArgumentException("Invalid zoom range " + minZoom + " to " + maxZoom);
+
+        this.layerName = layerName;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /** Tile all features in the decoder, writing to the sink. Returns the number of tiles written. */
+    public int tile (GeobufDecoder decoder, TileSink sink) throws IOException {
+        List<GeobufFeature> features = new ArrayList<>();
+        List<Geometry> projected = new ArrayList<>();
+
+        while (decoder.hasNext()) {
+            GeobufFeature feature = decoder.next();
+            if (feature.geometry == null || feature.geometry.isEmpty()) continue;
+            features.add(feature);
+            projected.add(project(feature.geometry));
+        }
+
+        LOG.info("Tiling {} features at zooms {} to {}", features.size(), minZoom, maxZoom);
+
+        AtomicInteger tileCount = new AtomicInteger();
+
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            final int z = zoom;
+            int tilesAtZoom = 1 << z;
+            // the buffer in world units at this zoom
+            double worldBuffer = (double) buffer / extent / tilesAtZoom;
+
+            // figure out which features touch which tiles
+            Map<Long, List<Integer>> featuresForTile = new HashMap<>();
+            for (int i = 0; i < projected.size(); i++) {
+                Envelope env = projected.get(i).getEnvelopeInternal();
+                int minx = tileIndex(env.getMinX() - worldBuffer, tilesAtZoom);
+                int maxx = tileIndex(env.getMaxX() + worldBuffer, tilesAtZoom);
+                int miny = tileIndex(env.getMinY() - worldBuffer, tilesAtZoom);
+                int maxy = tileIndex(env.getMaxY() + worldBuffer, tilesAtZoom);
+
+                for (int x = minx; x <= maxx; x++) {
+                    for (int y = miny; y <= maxy; y++) {
+                        featuresForTile.computeIfAbsent(((long) x << 32) | y, k -> new ArrayList<>()).add(i);
+                    }
+                }
+            }
+
+            featuresForTile.entrySet().parallelStream().forEach(e -> {
+                int x = (int) (e.getKey() >>> 32);
+                int y = (int) (e.getKey() & 0xffffffffL);
+                byte[] tile = makeTile(z, x, y, e.getValue(), features, projected);
+                if (tile == null) return;
+
+                try {
+                    sink.write(z, x, y, tile);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                tileCount.incrementAndGet();
+            });
+
+            LOG.info("Zoom {} complete, {} tiles total", z, tileCount.get());
+        }
+
+        return tileCount.get();
+    }
+
+    /** Make a single tile, or return null if no features are visible in it */
+    private byte[] makeTile (int z, int x, int y, List<Integer> featureIndices, List<GeobufFeature> features,
+                             List<Geometry> projected) {
+        VectorTileEncoder encoder = new VectorTileEncoder(layerName, extent);
+        double scale = (double) extent * (1 << z);
+        Geometry clipRect = geometryFactory.toGeometry(new Envelope(-buffer, extent + buffer, -buffer, extent + buffer));
+
+        for (int idx : featureIndices) {
+            Geometry geom = projected.get(idx).copy();
+            // world coordinates to tile pixels
+            geom.apply(new CoordinateSequenceFilter() {
+                @Override public void filter(CoordinateSequence seq, int i) {
+                    seq.setOrdinate(i, 0, seq.getX(i) * scale - (double) x * extent);
+                    seq.setOrdinate(i, 1, seq.getY(i) * scale - (double) y * extent);
+                }
+
+                @Override public boolean isDone() {
+                    return false;
+                }
+
+                @Override public boolean isGeometryChanged() {
+                    return true;
+                }
+            });
+
+            Geometry clipped = clip(geom, clipRect);
+            if (clipped == null || clipped.isEmpty()) continue;
+
+            GeobufFeature feature = features.get(idx);
+            encoder.addFeature(clipped, feature.properties, feature.id == null ? feature.numericId : null);
+        }
+
+        return encoder.isEmpty() ? null : encoder.encode();
+    }
+
+    private static Geometry clip (Geometry geom, Geometry clipRect) {
+        Envelope rect = clipRect.getEnvelopeInternal();
+        if (rect.contains(geom.getEnvelopeInternal())) return geom;
+
+        try {
+            return geom.intersection(clipRect);
+        } catch (TopologyException e) {
+            // invalid input polygon, try to repair it
+            try {
+                return geom.buffer(0).intersection(clipRect);
+            } catch (TopologyException e2) {
+                LOG.warn("Unable to clip geometry, skipping", e2);
+                return null;
+            }
+        }
+    }
+
+    /** Project a WGS84 geometry to Web Mercator world coordinates, 0 - 1 in both dimensions with y pointing down */
+    private static Geometry project (Geometry geom) {
+        Geometry projected = geom.copy();
+        projected.apply(new CoordinateSequenceFilter() {
+            @Override public void filter(CoordinateSequence seq, int i) {
+                double lat = Math.max(-MAX_LAT, Math.min(MAX_LAT, seq.getY(i)));
+                double sin = Math.sin(Math.toRadians(lat));
+                seq.setOrdinate(i, 0, (seq.getX(i) + 180) / 360);
+                seq.setOrdinate(i, 1, 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI));
+            }
+
+            @Override public boolean isDone() {
+                return false;
+            }
+
+            @Override public boolean isGeometryChanged() {
+                return true;
+            }
+        });
+        return projected;
+    }
+
+    private static int tileIndex (double world, int tilesAtZoom) {
+        return Math.max(0, Math.min(tilesAtZoom - 1, (int) Math.floor(world * tilesAtZoom)));
+    }
+
+    /** Somewhere to put finished tiles. Implementations must be threadsafe, as tiles are produced in parallel. */
+    public interface TileSink extends AutoCloseable {
+        void write (int z, int x, int y, byte[] tile) throws IOException;
+
+        @Override void close () throws IOException;
+    }
+
+    /** Write tiles to a z/x/y.mvt directory tree */
+    public static class DirectoryTileSink implements TileSink {
+        private final File directory;
+
+        public DirectoryTileSink (File directory) {
+            this.directory = directory;
+        }
+
+        @Override public void write(int z, int x, int y, byte[] tile) throws IOException {
+            File dir = new File(directory, z + "/" + x);
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                throw new IOException("Unable to create directory " + dir);
+
+            try (OutputStream os = new FileOutputStream(new File(dir, y + ".mvt"))) {
+                os.write(tile);
+            }
+        }
+
+        @Override public void close() {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Write tiles to an MBTiles SQLite database. This uses plain JDBC, so an SQLite driver (e.g. org.xerial:sqlite-jdbc)
+     * must be on the classpath at runtime. Tiles are gzipped, as most MBTiles consumers expect.
+     */
+    public static class MBTilesTileSink implements TileSink {
+        private final Connection connection;
+        private final PreparedStatement insert;
+
+        /** Write tiles cut by the tiler, describing its layer in the metadata */
+        public MBTilesTileSink (File file, String name, GeobufTiler tiler) throws IOException {
+            this(file, name, tiler.minZoom, tiler.maxZoom, tiler.layerName);
+        }
+
+        /**
+         * Write tiles containing the given layers. Metadata is replaced if the database already exists, so it can be
+         * reopened to add tiles.
+         */
+        public MBTilesTileSink (File file, String name, int minZoom, int maxZoom, String... layers) throws IOException {
+            try {
+                connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+                connection.setAutoCommit(false);
+
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+                    // databases written before metadata was keyed may hold duplicate rows, keep the latest
+                    stmt.execute("DELETE FROM metadata WHERE rowid NOT IN (SELECT MAX(rowid) FROM metadata GROUP BY name)");
+                    stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS metadata_index ON metadata (name)");
+                    stmt.execute("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                    stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+                }
+
+                try (PreparedStatement meta = connection.prepareStatement("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)")) {
+                    String[][] entries = {
+                            { "name", name }, { "format", "pbf" }, { "type", "overlay" }, { "version", "1" },
+                            { "minzoom", Integer.toString(minZoom) }, { "maxzoom", Integer.toString(maxZoom) },
+                            // required for vector tiles by MBTiles 1.3
+                            { "json", vectorLayers(layers) }
+                    };
+                    for (String[] entry : entries) {
+                        meta.setString(1, entry[0]);
+                        meta.setString(2, entry[1]);
+                        meta.executeUpdate();
+                    }
+                }
+
+                insert = connection.prepareStatement(
+                        "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            } catch (SQLException e) {
+                throw new IOException("Unable to open MBTiles database " + file, e);
+            }
+        }
+
+        @Override public void write(int z, int x, int y, byte[] tile) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (GZIPOutputStream gz = new GZIPOutputStream(baos)) {
+                gz.write(tile);
+            }
+
+            // JDBC statements are not threadsafe
+            synchronized (insert) {
+                try {
+                    insert.setInt(1, z);
+                    insert.setInt(2, x);
+                    // MBTiles uses TMS row numbering, with y pointing up
+                    insert.setInt(3, (1 << z) - 1 - y);
+                    insert.setBytes(4, baos.toByteArray());
+                    insert.executeUpdate();
+                } catch (SQLException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        /** @return the MBTiles json metadata listing the layers, with no field descriptions */
+        static String vectorLayers (String... layers) {
+            StringBuilder json = new StringBuilder("{\"vector_layers\":[");
+            for (int i = 0; i < layers.length; i++) {
+                if (i > 0) json.append(',');
+                json.append("{\"id\":");
+                quote(json, layers[i]);
+                json.append(",\"fields\":{}}");
+            }
+            return json.append("]}").toString();
+        }
+
+        private static void quote (StringBuilder json, String value) {
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') json.append('\\').append(c);
+                else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                else json.append(c);
+            }
+            json.append('"');
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                insert.close();
+                connection.commit();
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -2,44 +2,234 @@ package com.conveyal.data.geobuf;
 
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
-import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.*;
+import java.nio.file.*;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Convert a Shapefile to Geobuf format.
+ *
+ * Usage: ShapefileToGeobuf input.shp output.geobuf
+ *    or: ShapefileToGeobuf input-directory output-directory [glob]
+ *
+ * In the second form every file under the input directory matching the glob (by default *.shp) is converted, in one
+ * JVM, to a geobuf at the same relative path in the output directory, and a summary of each conversion is written to
+ * summary.csv in the output directory.
  */
 public class ShapefileToGeobuf {
+    private static final Logger LOG = LoggerFactory.getLogger(ShapefileToGeobuf.class);
+
+    public static final int PRECISION = 5;
+
+    /** WGS84 with longitude first, decoded once as decoding consults the EPSG database */
+    private static CoordinateReferenceSystem wgs84;
+
+    /** transforms from source coordinate systems to WGS84, as many files in a batch usually share a CRS */
+    private static final List<CoordinateReferenceSystem> sourceCrs = new ArrayList<>();
+    private static final List<MathTransform> transforms = new ArrayList<>();
+
     public static void main (String... args) throws Exception {
-        File inShp = new File(args[0]);
-        File outGb = new File(args[1]);
+        File in = new File(args[0]);
+        File out = new File(args[1]);
 
-        GeobufEncoder encoder = new GeobufEncoder(new FileOutputStream(outGb), 5);
+        if (in.isDirectory()) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            List<Result> results = convertAll(in, args.length > 2 ? args[2] : "*.shp", out, cpus * 2, cpus);
+            long failed = results.stream().filter(r -> r.error != null).count();
+            if (failed > 0) System.exit(1);
+        } else {
+            convert(in, out, null);
+        }
+    }
 
+    /**
+     * Convert a single shapefile, encoding on the given executor, or on the calling thread if it is null.
+     * @return the number of features converted
+     */
+    public static long convert (File inShp, File outGb, ExecutorService encodeExecutor) throws Exception {
         FileDataStore store = FileDataStoreFinder.getDataStore(inShp);
-        SimpleFeatureSource src = store.getFeatureSource();
+        try {
+            SimpleFeatureSource src = store.getFeatureSource();
+            CoordinateReferenceSystem crs = src.getInfo().getCRS();
+            // shapefiles without a .prj have no CRS; most in the wild are then in geographic coordinates
+            if (crs == null) LOG.warn("{} has no coordinate reference system, assuming WGS84", inShp);
+            MathTransform transform = transform(crs);
+            SimpleFeatureCollection sfc = src.getFeatures();
+
+            List<GeobufFeature> features = new ArrayList<>(sfc.size());
+
+            SimpleFeatureIterator it = sfc.features();
+            try {
+                while (it.hasNext()) {
+                    GeobufFeature feat = new GeobufFeature(it.next());
+                    feat.geometry = JTS.transform(feat.geometry, transform);
+                    features.add(feat);
+                }
+            } finally {
+                it.close();
+            }
+
+            // shapefiles have a fixed set of attributes, so encode every feature with the same key order
+            List<String> schema = schema(sfc.getSchema());
+
+            Callable<Long> encode = () -> {
+                try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outGb))) {
+                    GeobufEncoder encoder = new GeobufEncoder(os, PRECISION);
+                    encoder.setSchema(schema);
+                    encoder.writeFeatureCollection(features);
+                }
+                return (long) features.size();
+            };
+
+            if (encodeExecutor == null) return encode.call();
+
+            try {
+                return encodeExecutor.submit(encode).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                else throw e;
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Convert all files matching glob under inDir into outDir. Up to readThreads files are read concurrently, since
+     * reading shapefiles is mostly waiting on I/O, while encoding is limited to encodeThreads. A file being read holds its
+     * read thread until it has been encoded, so no more than readThreads files are in memory at once.
+     */
+    public static List<Result> convertAll (File inDir, String glob, File outDir, int readThreads, int encodeThreads)
+            throws IOException, InterruptedException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Path root = inDir.toPath();
+
+        List<Path> inputs;
+        try (Stream<Path> paths = Files.walk(root)) {
+            inputs = paths
+                    .filter(p -> Files.isRegularFile(p) && matcher.matches(p.getFileName()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        LOG.info("Converting {} files from {} to {}", inputs.size(), inDir, outDir);
 
-        Query q = new Query();
-        q.setCoordinateSystem(src.getInfo().getCRS());
-        q.setCoordinateSystemReproject(CRS.decode("EPSG:4326", true));
-        SimpleFeatureCollection sfc = src.getFeatures(q);
+        ExecutorService readExecutor = Executors.newFixedThreadPool(readThreads);
+        ExecutorService encodeExecutor = Executors.newFixedThreadPool(encodeThreads);
 
-        Collection<GeobufFeature> features = new ArrayList<>();
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Path input : inputs) {
+            String relative = root.relativize(input).toString();
+            File output = new File(outDir, relative.replaceFirst("\\.[^.]*$", "") + ".geobuf");
 
-        for (SimpleFeatureIterator it = sfc.features(); it.hasNext();) {
-            GeobufFeature feat = new GeobufFeature(it.next());
-            features.add(feat);
+            futures.add(readExecutor.submit(() -> {
+                Result result = new Result(relative);
+                long start = System.currentTimeMillis();
+                try {
+                    output.getParentFile().mkdirs();
+                    result.featureCount = convert(input.toFile(), output, encodeExecutor);
+                    result.bytes = output.length();
+                } catch (Exception e) {
+                    LOG.error("Error converting {}", relative, e);
+                    result.error = e.toString();
+                }
+                result.millis = System.currentTimeMillis() - start;
+                return result;
+            }));
         }
 
-        encoder.writeFeatureCollection(features);
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            // conversion errors are caught and reported in the result
+            throw new RuntimeException(e);
+        } finally {
+            readExecutor.shutdownNow();
+            encodeExecutor.shutdownNow();
+        }
+
+        writeSummary(results, new File(outDir, "summary.csv"));
+        return results;
+    }
+
+    private static void writeSummary (List<Result> results, File file) throws IOException {
+        long features = 0, bytes = 0, failed = 0;
+
+        file.getParentFile().mkdirs();
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            pw.println("file,features,bytes,millis,error");
+            for (Result r : results) {
+                pw.printf("\"%s\",%d,%d,%d,\"%s\"%n", r.file.replace("\"", "\"\""), r.featureCount, r.bytes, r.millis,
+                        r.error == null ? "" : r.error.replace("\"", "\"\""));
+                features += r.featureCount;
+                bytes += r.bytes;
+                if (r.error != null) failed++;
+            }
+        }
+
+        LOG.info("Converted {} files ({} failed), {} features, {} bytes; summary in {}", results.size(), failed,
+                features, bytes, file);
+    }
+
+    /**
+     * Get a transform from a source CRS to WGS84, reusing transforms between files with the same CRS. A null source
+     * is taken to be WGS84.
+     */
+    private static synchronized MathTransform transform (CoordinateReferenceSystem source) throws Exception {
+        if (wgs84 == null) wgs84 = CRS.decode("EPSG:4326", true);
+        if (source == null) source = wgs84;
 
-        encoder.close();
+        for (int i = 0; i < sourceCrs.size(); i++) {
+            if (CRS.equalsIgnoreMetadata(sourceCrs.get(i), source)) return transforms.get(i);
+        }
+
+        MathTransform transform = CRS.findMathTransform(source, wgs84, true);
+        sourceCrs.add(source);
+        transforms.add(transform);
+        return transform;
+    }
+
+    /** @return the names of the non-geometry attributes of a feature type, in order */
+    public static List<String> schema (SimpleFeatureType type) {
+        List<String> schema = new ArrayList<>();
+        for (AttributeDescriptor attr : type.getAttributeDescriptors()) {
+            if (attr instanceof GeometryDescriptor) continue;
+            schema.add(attr.getLocalName());
+        }
+        return schema;
+    }
+
+    /** The outcome of converting one file in a batch */
+    public static class Result {
+        public final String file;
+        public long featureCount;
+        public long bytes;
+        public long millis;
+        /** null if the conversion succeeded */
+        public String error;
+
+        Result (String file) {
+            this.file = file;
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+/**
+ * Read a feature collection written by ShardedGeobufWriter, either by iterating over all the shards in order or by
+ * querying shards in parallel, skipping those whose bounding boxes do not intersect the query.
+ */
+public class ShardedGeobufReader implements Iterable<GeobufFeature> {
+    public final List<Shard> shards;
+
+    private final File directory;
+
+    /** Open the sharded collection described by the given manifest file */
+    public ShardedGeobufReader (File manifest) throws IOException {
+        this.directory = manifest.getParentFile();
+
+        List<Shard> shards = new ArrayList<>();
+        GeobufDecoder decoder = new GeobufDecoder(new BufferedInputStream(new FileInputStream(manifest)));
+        while (decoder.hasNext()) {
+            GeobufFeature entry = decoder.next();
+            shards.add(new Shard(
+                    (String) entry.properties.get("file"),
+                    ((Number) entry.properties.get("featureCount")).longValue(),
+                    ((Number) entry.properties.get("bytes")).longValue(),
+                    entry.geometry.getEnvelopeInternal()
+            ));
+        }
+
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    /** @return the total number of features in all shards */
+    public long size () {
+        return shards.stream().mapToLong(s -> s.featureCount).sum();
+    }
+
+    /** Iterate over all features in all shards, in the order they were written */
+    @Override public Iterator<GeobufFeature> iterator() {
+        return new Iterator<GeobufFeature>() {
+            private int shard = 0;
+            private GeobufDecoder decoder;
+
+            @Override public boolean hasNext() {
+                while (decoder == null || !decoder.hasNext()) {
+                    if (shard >= shards.size()) return false;
+                    decoder = open(shards.get(shard++));
+                }
+                return true;
+            }
+
+            @Override public GeobufFeature next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return decoder.next();
+            }
+        };
+    }
+
+    /**
+     * Find all features whose envelopes intersect the given envelope. Shards that cannot contain matches are skipped,
+     * and the remaining shards are read in parallel.
+     */
+    public List<GeobufFeature> query (Envelope envelope) {
+        return shards.parallelStream()
+                .filter(s -> s.envelope.intersects(envelope))
+                .flatMap(s -> {
+                    List<GeobufFeature> matches = new ArrayList<>();
+                    GeobufDecoder decoder = open(s);
+                    while (decoder.hasNext()) {
+                        GeobufFeature feature = decoder.next();
+                        if (feature.geometry != null && feature.geometry.getEnvelopeInternal().intersects(envelope))
+                            matches.add(feature);
+                    }
+                    return matches.stream();
+                })
+                .collect(Collectors.toList());
+    }
+
+    private GeobufDecoder open (Shard shard) {
+        try {
+            return new GeobufDecoder(new BufferedInputStream(new FileInputStream(new File(directory, shard.file))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A manifest entry describing one shard */
+    public static class Shard {
+        public final String file;
+        public final long featureCount;
+        public final long bytes;
+        public final Envelope envelope;
+
+        public Shard(String file, long featureCount, long bytes, Envelope envelope) {
+            this.file = file;
+            this.featureCount = featureCount;
+            this.bytes = bytes;
+            this.envelope = envelope;
+        }
+    }
+}
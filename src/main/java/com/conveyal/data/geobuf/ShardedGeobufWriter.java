@@ -0,0 +1,141 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Write a feature collection that may be too large for a single geobuf to a series of numbered shard files.
+ *
+ * A single Geobuf.Data message cannot exceed 2GB, and is slow to read if it is anywhere near that. This writer encodes
+ * features one at a time and starts a new shard whenever the current one reaches a given size or number of features.
+ * When closed, it writes a manifest, itself a geobuf, with one feature per shard: the geometry is the bounding box of
+ * the shard and the properties are the shard file name, feature count and size in bytes. Read the shards back with
+ * ShardedGeobufReader.
+ */
+public class ShardedGeobufWriter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedGeobufWriter.class);
+
+    /** Default maximum shard size, comfortably below the protobuf default size limit */
+    public static final long DEFAULT_MAX_SHARD_BYTES = 32 * 1024 * 1024;
+
+    public static final String MANIFEST_SUFFIX = ".manifest.geobuf";
+
+    private final File directory;
+    private final String baseName;
+    private final GeobufEncoder encoder;
+    private final int dimensions;
+
+    private final long maxShardBytes;
+    private final int maxShardFeatures;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /** features in the current shard, already encoded against currentKeys */
+    private List<Geobuf.Data.Feature> currentFeatures = new ArrayList<>();
+    private List<String> currentKeys = new ArrayList<>();
+    private Envelope currentEnvelope = new Envelope();
+    private long currentBytes = 0;
+
+    /** manifest entries for the shards written so far */
+    private final List<GeobufFeature> manifest = new ArrayList<>();
+
+    /**
+     * Create a writer which will write files named baseName-00000.geobuf etc. to directory. Dimensions should be 2
+     * unless the features have Z or M values.
+     */
+    public ShardedGeobufWriter (File directory, String baseName, int precision, int dimensions, long maxShardBytes,
+                                int maxShardFeatures) {
+        if (!directory.isDirectory())
+            throw new IllegalArgumentException(directory + " is not a directory");
+
+        this.directory = directory;
+        this.baseName = baseName;
+        this.dimensions = dimensions;
+        this.maxShardBytes = maxShardBytes;
+        this.maxShardFeatures = maxShardFeatures;
+        // the encoder is only used to build messages, not to write
+        this.encoder = new GeobufEncoder(new ByteArrayOutputStream(), precision);
+    }
+
+    public ShardedGeobufWriter (File directory, String baseName, int precision) {
+        this(directory, baseName, precision, 2, DEFAULT_MAX_SHARD_BYTES, Integer.MAX_VALUE);
+    }
+
+    public void add (GeobufFeature feature) throws IOException {
+        int keyCount = currentKeys.size();
+        Geobuf.Data.Feature encoded = encoder.makeFeature(feature, currentKeys, dimensions);
+        int size = encoded.getSerializedSize();
+
+        // roll over before this feature if it would push the shard over the limit, but never write an empty shard
+        if (!currentFeatures.isEmpty() &&
+                (currentBytes + size > maxShardBytes || currentFeatures.size() >= maxShardFeatures)) {
+            // the feature was encoded against the old keys, drop any keys it added and re-encode it for the new shard
+            currentKeys.subList(keyCount, currentKeys.size()).clear();
+            writeShard();
+            encoded = encoder.makeFeature(feature, currentKeys, dimensions);
+        }
+
+        currentFeatures.add(encoded);
+        // add a few bytes for the tag and length
+        currentBytes += size + 6;
+        if (feature.geometry != null) currentEnvelope.expandToInclude(feature.geometry.getEnvelopeInternal());
+    }
+
+    public void addAll (Iterable<GeobufFeature> features) throws IOException {
+        for (GeobufFeature feature : features) add(feature);
+    }
+
+    private void writeShard () throws IOException {
+        String fileName = String.format("%s-%05d.geobuf", baseName, manifest.size());
+        Geobuf.Data data = encoder.makeFeatureCollection(currentFeatures, currentKeys, dimensions);
+
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(directory, fileName)))) {
+            data.writeTo(os);
+        }
+        GeobufMetrics.count(GeobufMetrics.ENCODE_BYTES, data.getSerializedSize());
+
+        // build the envelope polygon by hand, as GeometryFactory.toGeometry returns a point or line for degenerate envelopes
+        Envelope e = currentEnvelope;
+        GeobufFeature entry = new GeobufFeature();
+        entry.geometry = geometryFactory.createPolygon(new Coordinate[] {
+                new Coordinate(e.getMinX(), e.getMinY()),
+                new Coordinate(e.getMaxX(), e.getMinY()),
+                new Coordinate(e.getMaxX(), e.getMaxY()),
+                new Coordinate(e.getMinX(), e.getMaxY()),
+                new Coordinate(e.getMinX(), e.getMinY())
+        });
+        entry.properties = new HashMap<>();
+        entry.properties.put("file", fileName);
+        entry.properties.put("featureCount", (long) currentFeatures.size());
+        entry.properties.put("bytes", (long) data.getSerializedSize());
+        entry.numericId = manifest.size();
+        manifest.add(entry);
+
+        LOG.info("Wrote shard {} with {} features", fileName, currentFeatures.size());
+
+        currentFeatures = new ArrayList<>();
+        currentKeys = new ArrayList<>();
+        currentEnvelope = new Envelope();
+        currentBytes = 0;
+    }
+
+    /** Write the final shard and the manifest */
+    @Override public void close () throws IOException {
+        if (!currentFeatures.isEmpty()) writeShard();
+
+        File manifestFile = new File(directory, baseName + MANIFEST_SUFFIX);
+        GeobufEncoder manifestEncoder = new GeobufEncoder(new BufferedOutputStream(new FileOutputStream(manifestFile)),
+                encoder.precision);
+        manifestEncoder.writeFeatureCollection(manifest);
+        manifestEncoder.close();
+    }
+}
@@ -0,0 +1,165 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Join points to the polygons that contain them, e.g. origins to census blocks, writing the points with the
+ * attributes of their polygons to a new geobuf.
+ *
+ * The polygons are loaded into a SpatialLayer. The points are streamed with AsyncGeobufReader and split into batches,
+ * which are probed against the layer on a pool of threads and written in their original order, so the output is in the
+ * same order as the input while only a few batches are held in memory. Each polygon is prepared the first time a point
+ * falls in it, and the prepared geometry is reused for all later points.
+ *
+ * Polygon properties are copied to the points with a prefix (polygon_ by default from the command line). A polygon
+ * property is never copied over a property the point already has, so the point's own properties are kept even with an
+ * empty prefix. If a point is in more than one polygon, the first one found is used. For geometries other than points,
+ * the centroid is used.
+ *
+ * Usage: SpatialJoin points.geobuf polygons.geobuf output.geobuf [property prefix]
+ */
+public class SpatialJoin {
+    private static final Logger LOG = LoggerFactory.getLogger(SpatialJoin.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /** prefix for polygon properties when none is given on the command line */
+    public static final String DEFAULT_PREFIX = "polygon_";
+
+    /** how often to log progress, in points */
+    private static final long LOG_INTERVAL = 1_000_000;
+
+    public static void main (String... args) throws Exception {
+        String prefix = args.length > 3 ? args[3] : DEFAULT_PREFIX;
+        Result result = join(new File(args[0]), new File(args[1]), new File(args[2]), prefix, true,
+                Runtime.getRuntime().availableProcessors());
+        LOG.info("Joined {} points, {} in a polygon, in {} seconds ({} points/sec)", result.points, result.matched,
+                String.format("%.1f", result.seconds), String.format("%.0f", result.pointsPerSecond()));
+    }
+
+    /**
+     * Join points to polygons using the given number of threads.
+     * @param prefix prepended to the names of polygon properties in the output; properties whose prefixed name the
+     *               point already has are not copied
+     * @param keepUnmatched whether to write points that are not in any polygon, without polygon properties
+     */
+    public static Result join (File points, File polygons, File output, String prefix, boolean keepUnmatched,
+                               int threads) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            SpatialLayer layer = SpatialLayer.load(polygons, executor, SpatialLayer.DEFAULT_NODE_CAPACITY,
+                    new GeometryFactory());
+            LOG.info("Loaded {} polygons in {} ms", layer.size(), (System.nanoTime() - start) / 1_000_000);
+
+            GeobufHeader header = GeobufHeader.read(points);
+            Result result = new Result();
+
+            try (AsyncGeobufReader reader = new AsyncGeobufReader(points, executor, AsyncGeobufReader.DEFAULT_CHUNK_SIZE,
+                    AsyncGeobufReader.DEFAULT_BATCH_SIZE, AsyncGeobufReader.DEFAULT_QUEUE_SIZE, null);
+                 StreamingGeobufWriter writer = new StreamingGeobufWriter(new FileOutputStream(output),
+                         header.precision, header.dimensions, StreamingGeobufWriter.DEFAULT_FRAGMENT_SIZE)) {
+
+                // enough batches in flight to keep every thread busy while the oldest is written
+                Deque<Future<Batch>> pending = new ArrayDeque<>();
+
+                while (reader.hasNext() || !pending.isEmpty()) {
+                    while (reader.hasNext() && pending.size() < threads * 2) {
+                        List<GeobufFeature> batch = new ArrayList<>(DEFAULT_BATCH_SIZE);
+                        while (reader.hasNext() && batch.size() < DEFAULT_BATCH_SIZE) batch.add(reader.next());
+                        pending.add(executor.submit(() -> probe(layer, batch, prefix, keepUnmatched)));
+                    }
+
+                    Batch batch = get(pending.poll());
+                    writer.addAll(batch.features);
+
+                    long before = result.points;
+                    result.points += batch.points;
+                    result.matched += batch.matched;
+
+                    if (result.points / LOG_INTERVAL != before / LOG_INTERVAL) {
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        LOG.info("Joined {} points, {} points/sec", result.points,
+                                String.format("%.0f", result.points / seconds));
+                    }
+                }
+            }
+
+            result.seconds = (System.nanoTime() - start) / 1e9;
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Find the polygon containing each point in a batch, and copy its properties to the point */
+    private static Batch probe (SpatialLayer layer, List<GeobufFeature> points, String prefix, boolean keepUnmatched) {
+        Batch batch = new Batch();
+        batch.points = points.size();
+
+        for (GeobufFeature point : points) {
+            GeobufFeature polygon = null;
+            if (point.geometry != null && !point.geometry.isEmpty()) {
+                Coordinate coord = point.geometry instanceof Point ?
+                        point.geometry.getCoordinate() : point.geometry.getCentroid().getCoordinate();
+                polygon = layer.containing(coord.x, coord.y);
+            }
+
+            if (polygon != null) {
+                for (Map.Entry<String, Object> e : polygon.properties.entrySet()) {
+                    point.properties.putIfAbsent(prefix + e.getKey(), e.getValue());
+                }
+                batch.matched++;
+                batch.features.add(point);
+            } else if (keepUnmatched) {
+                batch.features.add(point);
+            }
+        }
+
+        return batch;
+    }
+
+    private static <T> T get (Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else throw new RuntimeException(cause);
+        }
+    }
+
+    private static class Batch {
+        final List<GeobufFeature> features = new ArrayList<>();
+        int points;
+        int matched;
+    }
+
+    /** Counts and timing of a join */
+    public static class Result {
+        /** number of points read */
+        public long points;
+
+        /** number of points that were in a polygon */
+        public long matched;
+
+        /** total time taken, including loading the polygons */
+        public double seconds;
+
+        public double pointsPerSecond () {
+            return points / seconds;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.Boundable;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-memory layer of features with a spatial index, for point-in-polygon and other spatial queries.
+ *
+ * The geobuf is decoded in parallel with AsyncGeobufReader and the features are bulk loaded into a packed STRtree.
+ * Each geometry is prepared (see PreparedGeometry) the first time a query hits it rather than up front, so startup does
+ * not pay for preparing geometries that are never queried, while geometries that are queried repeatedly, such as the
+ * zones in a point-in-polygon join, are only prepared once.
+ *
+ * Once loaded, a layer is immutable and may be queried from any number of threads. Queries walk the root node of the
+ * tree, captured once it has been built, rather than calling STRtree.query, nearestNeighbour or getRoot, which all go
+ * through the synchronized STRtree.build on every call.
+ */
+public class SpatialLayer {
+    private static final Logger LOG = LoggerFactory.getLogger(SpatialLayer.class);
+
+    public static final int DEFAULT_NODE_CAPACITY = 10;
+
+    private static final PreparedGeometryFactory PREPARED_GEOMETRY_FACTORY = new PreparedGeometryFactory();
+
+    /** root of the built tree */
+    private final AbstractNode root;
+
+    private final GeometryFactory geometryFactory;
+
+    private final int size;
+
+    private SpatialLayer (STRtree tree, GeometryFactory geometryFactory, int size) {
+        // getRoot calls the synchronized build, so call it once here rather than on every query
+        this.root = tree.getRoot();
+        this.geometryFactory = geometryFactory;
+        this.size = size;
+    }
+
+    /** Load a geobuf, decoding it with a thread per processor */
+    public static SpatialLayer load (File file) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return load(file, workers, DEFAULT_NODE_CAPACITY, new GeometryFactory());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Load a geobuf, decoding features on the given executor and creating geometries with the given factory.
+     * Features without geometries are skipped.
+     */
+    public static SpatialLayer load (File file, ExecutorService workers, int nodeCapacity, GeometryFactory geometryFactory)
+            throws IOException {
+        STRtree tree = new STRtree(nodeCapacity);
+        int size = 0;
+
+        try (AsyncGeobufReader reader = new AsyncGeobufReader(file, workers, AsyncGeobufReader.DEFAULT_CHUNK_SIZE,
+                AsyncGeobufReader.DEFAULT_BATCH_SIZE, AsyncGeobufReader.DEFAULT_QUEUE_SIZE, geometryFactory)) {
+            while (reader.hasNext()) {
+                GeobufFeature feature = reader.next();
+                if (feature.geometry == null || feature.geometry.isEmpty()) continue;
+                tree.insert(feature.geometry.getEnvelopeInternal(), new Item(feature));
+                size++;
+            }
+        }
+
+        // pack the tree now, so that queries never need to
+        tree.build();
+        return new SpatialLayer(tree, geometryFactory, size);
+    }
+
+    /** @return features whose geometry contains the given point */
+    public List<GeobufFeature> contains (double x, double y) {
+        Point point = geometryFactory.createPoint(new Coordinate(x, y));
+        List<GeobufFeature> result = new ArrayList<>();
+        for (Item item : candidates(point.getEnvelopeInternal())) {
+            if (item.prepared().contains(point)) result.add(item.feature);
+        }
+        return result;
+    }
+
+    /** @return the first feature found whose geometry contains the given point, or null if there is none */
+    public GeobufFeature containing (double x, double y) {
+        Point point = geometryFactory.createPoint(new Coordinate(x, y));
+        for (Item item : candidates(point.getEnvelopeInternal())) {
+            if (item.prepared().contains(point)) return item.feature;
+        }
+        return null;
+    }
+
+    /** @return features whose geometry intersects the given geometry */
+    public List<GeobufFeature> intersects (Geometry geometry) {
+        List<GeobufFeature> result = new ArrayList<>();
+        for (Item item : candidates(geometry.getEnvelopeInternal())) {
+            if (item.prepared().intersects(geometry)) result.add(item.feature);
+        }
+        return result;
+    }
+
+    /** @return the feature whose geometry is nearest to the given point, or null if the layer is empty */
+    public GeobufFeature nearest (double x, double y) {
+        if (size == 0) return null;
+        Point point = geometryFactory.createPoint(new Coordinate(x, y));
+        Envelope envelope = point.getEnvelopeInternal();
+
+        // best-first search: visit nodes and items in order of the distance to their envelopes, which is never more
+        // than the distance to anything inside them, until that is no closer than the nearest item found
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(Comparator.comparingDouble(c -> c.distance));
+        queue.add(new Candidate(root, 0));
+        Item nearest = null;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (candidate.distance >= nearestDistance) break;
+
+            if (candidate.boundable instanceof AbstractNode) {
+                for (Object child : ((AbstractNode) candidate.boundable).getChildBoundables()) {
+                    Boundable boundable = (Boundable) child;
+                    double distance = ((Envelope) boundable.getBounds()).distance(envelope);
+                    if (distance < nearestDistance) queue.add(new Candidate(boundable, distance));
+                }
+            } else {
+                Item item = (Item) ((ItemBoundable) candidate.boundable).getItem();
+                double distance = item.feature.geometry.distance(point);
+                if (distance < nearestDistance) {
+                    nearest = item;
+                    nearestDistance = distance;
+                }
+            }
+        }
+
+        return nearest.feature;
+    }
+
+    /** @return the number of features in this layer */
+    public int size () {
+        return size;
+    }
+
+    /** @return items whose envelope intersects the given envelope */
+    private List<Item> candidates (Envelope envelope) {
+        List<Item> result = new ArrayList<>();
+        if (size > 0) query(root, envelope, result);
+        return result;
+    }
+
+    private static void query (AbstractNode node, Envelope envelope, List<Item> result) {
+        for (Object child : node.getChildBoundables()) {
+            Boundable boundable = (Boundable) child;
+            if (!envelope.intersects((Envelope) boundable.getBounds())) continue;
+
+            if (boundable instanceof AbstractNode) query((AbstractNode) boundable, envelope, result);
+            else result.add((Item) ((ItemBoundable) boundable).getItem());
+        }
+    }
+
+    /** A node or item in a nearest neighbor search, and the distance to its envelope */
+    private static class Candidate {
+        final Boundable boundable;
+        final double distance;
+
+        Candidate (Boundable boundable, double distance) {
+            this.boundable = boundable;
+            this.distance = distance;
+        }
+    }
+
+    /** A feature in the tree, and its geometry prepared for repeated queries once it has been hit */
+    private static class Item {
+        final GeobufFeature feature;
+
+        /**
+         * Prepared lazily. Two threads may both prepare the same geometry, which is harmless as prepared geometries are
+         * equivalent and thread safe, and cheaper than locking on every query.
+         */
+        private volatile PreparedGeometry prepared;
+
+        Item (GeobufFeature feature) {
+            this.feature = feature;
+        }
+
+        PreparedGeometry prepared () {
+            PreparedGeometry p = prepared;
+            if (p == null) prepared = p = PREPARED_GEOMETRY_FACTORY.create(feature.geometry);
+            return p;
+        }
+    }
+
+    /**
+     * Measure the time taken to load a geobuf and to answer point-in-polygon queries against it, comparing a layer
+     * loaded with GeobufDecoder on one thread and the geometries prepared up front, as was typically done before this
+     * class existed.
+     *
+     * Usage: SpatialLayer polygons.geobuf [query count]
+     */
+    public static void main (String... args) throws Exception {
+        File file = new File(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            STRtree eager = new STRtree();
+            GeobufDecoder decoder = new GeobufDecoder(new BufferedInputStream(new FileInputStream(file)));
+            while (decoder.hasNext()) {
+                GeobufFeature feature = decoder.next();
+                if (feature.geometry == null || feature.geometry.isEmpty()) continue;
+                eager.insert(feature.geometry.getEnvelopeInternal(), PREPARED_GEOMETRY_FACTORY.create(feature.geometry));
+            }
+            eager.build();
+            long sequentialMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            SpatialLayer layer = load(file);
+            long parallelMillis = (System.nanoTime() - start) / 1_000_000;
+
+            LOG.info("Run {}: loaded {} features in {} ms sequentially with eager preparation, {} ms with SpatialLayer",
+                    run, layer.size(), sequentialMillis, parallelMillis);
+
+            if (layer.size() == 0) continue;
+
+            // random points in the bounds of the layer
+            Envelope bounds = (Envelope) layer.root.getBounds();
+            Random random = new Random(run);
+            start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < queries; i++) {
+                double x = bounds.getMinX() + random.nextDouble() * bounds.getWidth();
+                double y = bounds.getMinY() + random.nextDouble() * bounds.getHeight();
+                if (layer.containing(x, y) != null) hits++;
+            }
+            long queryNanos = System.nanoTime() - start;
+            LOG.info("Run {}: {} point-in-polygon queries ({} hits) in {} ms, {} ns per query", run, queries, hits,
+                    queryNanos / 1_000_000, queryNanos / queries);
+        }
+    }
+}
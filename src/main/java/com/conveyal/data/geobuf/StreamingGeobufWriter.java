@@ -0,0 +1,116 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write a geobuf feature collection one feature at a time, without holding the whole collection in memory.
+ *
+ * Features are buffered and written in fragments, each a complete Geobuf.Data message holding the features and only the
+ * keys that were not in an earlier fragment. Protobuf merges concatenated messages, appending repeated fields, so the
+ * output is a single ordinary geobuf: the keys of all fragments form one keys table, and the feature collections form
+ * one feature collection. Since the number of dimensions cannot be detected without seeing every feature, it is given
+ * up front.
+ *
+ * The same mechanism allows appending to an existing geobuf without rewriting it; see append().
+ */
+public class StreamingGeobufWriter implements Closeable {
+    public static final int DEFAULT_FRAGMENT_SIZE = 1024;
+
+    private final OutputStream out;
+
+    private final GeobufEncoder encoder;
+
+    private final int dimensions;
+
+    private final int fragmentSize;
+
+    /** all keys written or about to be written */
+    private final List<String> keys;
+
+    /** number of keys already written */
+    private int keysWritten;
+
+    private List<Geobuf.Data.Feature> currentFeatures = new ArrayList<>();
+
+    private long featureCount = 0;
+
+    public StreamingGeobufWriter (OutputStream os, int precision, int dimensions, int fragmentSize) {
+        this(os, precision, dimensions, fragmentSize, new ArrayList<>());
+    }
+
+    public StreamingGeobufWriter (OutputStream os, int precision) {
+        this(os, precision, 2, DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /** Create a writer that continues a geobuf that already has the given keys */
+    StreamingGeobufWriter (OutputStream os, int precision, int dimensions, int fragmentSize, List<String> existingKeys) {
+        this.out = new BufferedOutputStream(os);
+        this.encoder = new GeobufEncoder(new ByteArrayOutputStream(), precision);
+        this.dimensions = dimensions;
+        this.fragmentSize = fragmentSize;
+        this.keys = new ArrayList<>(existingKeys);
+        this.keysWritten = existingKeys.size();
+    }
+
+    /**
+     * Open an existing geobuf feature collection for appending. Only the keys, precision and dimensions are read; the
+     * feature collection is skipped over using its length, so the cost of appending does not depend on the size of the
+     * file. New features are encoded against the existing keys table, and written as fragments at the end of the file.
+     */
+    public static StreamingGeobufWriter append (File file, int fragmentSize) throws IOException {
+        GeobufHeader header = GeobufHeader.read(file);
+        return new StreamingGeobufWriter(new FileOutputStream(file, true), header.precision, header.dimensions,
+                fragmentSize, header.keys);
+    }
+
+    /** Encode every feature against a fixed list of keys; see GeobufEncoder.setSchema. Must be set before any features are added. */
+    public void setSchema (List<String> schema) {
+        if (featureCount > 0 || !keys.isEmpty())
+            throw new IllegalStateException("Schema must be set before writing features");
+        encoder.setSchema(schema);
+    }
+
+    public void add (GeobufFeature feature) throws IOException {
+        currentFeatures.add(encoder.makeFeature(feature, keys, dimensions));
+        featureCount++;
+        if (currentFeatures.size() >= fragmentSize) flush();
+    }
+
+    public void addAll (Iterable<GeobufFeature> features) throws IOException {
+        for (GeobufFeature feature : features) add(feature);
+    }
+
+    /** Write any buffered features as a fragment, and flush the underlying stream */
+    public void flush () throws IOException {
+        if (!currentFeatures.isEmpty()) {
+            Geobuf.Data data = encoder.makeFeatureCollection(currentFeatures, keys.subList(keysWritten, keys.size()),
+                    dimensions);
+            data.writeTo(out);
+            GeobufMetrics.count(GeobufMetrics.ENCODE_BYTES, data.getSerializedSize());
+
+            keysWritten = keys.size();
+            currentFeatures = new ArrayList<>();
+        }
+
+        out.flush();
+    }
+
+    /** @return the number of features added so far */
+    public long getFeatureCount () {
+        return featureCount;
+    }
+
+    /** Write the last fragment and close the underlying stream */
+    @Override public void close () throws IOException {
+        if (featureCount == 0 && keysWritten == 0) {
+            // write an empty feature collection, so that the output is still a valid feature collection
+            encoder.makeFeatureCollection(currentFeatures, keys, dimensions).writeTo(out);
+        }
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,301 @@
+package com.conveyal.data.geobuf;
+
+import com.google.protobuf.CodedOutputStream;
+import org.locationtech.jts.geom.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encode a single layer of a Mapbox Vector Tile (version 2 of the spec).
+ *
+ * Geometries passed in must already be in tile-local pixel coordinates (0 to extent, y pointing down); they are
+ * rounded to integers here. The MVT wire format uses the same zigzag delta coding as geobuf coordinates, so we write
+ * it directly with a CodedOutputStream rather than carrying around a second set of generated protobuf classes.
+ *
+ * Not threadsafe; use one encoder per tile.
+ */
+public class VectorTileEncoder {
+    // MVT field numbers
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_NAME = 1, LAYER_FEATURES = 2, LAYER_KEYS = 3, LAYER_VALUES = 4, LAYER_EXTENT = 5,
+            LAYER_VERSION = 15;
+    private static final int FEATURE_ID = 1, FEATURE_TAGS = 2, FEATURE_TYPE = 3, FEATURE_GEOMETRY = 4;
+    private static final int VALUE_STRING = 1, VALUE_DOUBLE = 3, VALUE_UINT = 5, VALUE_SINT = 6, VALUE_BOOL = 7;
+
+    private static final int GEOM_POINT = 1, GEOM_LINESTRING = 2, GEOM_POLYGON = 3;
+    private static final int CMD_MOVE_TO = 1, CMD_LINE_TO = 2, CMD_CLOSE_PATH = 7;
+
+    public final String layerName;
+
+    public final int extent;
+
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> keyIndices = new HashMap<>();
+
+    private final List<Object> values = new ArrayList<>();
+    private final Map<Object, Integer> valueIndices = new HashMap<>();
+
+    /** encoded features, each a complete Feature message */
+    private final List<byte[]> features = new ArrayList<>();
+
+    public VectorTileEncoder (String layerName, int extent) {
+        this.layerName = layerName;
+        this.extent = extent;
+    }
+
+    /** Add a feature whose geometry is in tile pixel coordinates. Returns false if the geometry was degenerate at this zoom. */
+    public boolean addFeature (Geometry geometry, Map<String, Object> properties, Long id) {
+        int type;
+        List<Integer> commands = new ArrayList<>();
+        // cursor is shared across all parts of a geometry
+        long[] cursor = new long[2];
+
+        if (geometry instanceof Point || geometry instanceof MultiPoint) {
+            type = GEOM_POINT;
+            encodePoints(geometry, commands, cursor);
+        } else if (geometry instanceof LineString || geometry instanceof MultiLineString) {
+            type = GEOM_LINESTRING;
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                encodeLine(((LineString) geometry.getGeometryN(i)).getCoordinateSequence(), commands, cursor);
+            }
+        } else if (geometry instanceof Polygon || geometry instanceof MultiPolygon) {
+            type = GEOM_POLYGON;
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Polygon p = (Polygon) geometry.getGeometryN(i);
+                // a polygon whose shell collapsed must not contribute holes to the previous polygon
+                if (!encodeRing(p.getExteriorRing().getCoordinateSequence(), true, commands, cursor)) continue;
+                for (int ring = 0; ring < p.getNumInteriorRing(); ring++) {
+                    encodeRing(p.getInteriorRingN(ring).getCoordinateSequence(), false, commands, cursor);
+                }
+            }
+        } else if (geometry instanceof GeometryCollection) {
+            // clipping may produce mixed collections, keep the highest-dimension part
+            Geometry best = null;
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Geometry part = geometry.getGeometryN(i);
+                if (best == null || part.getDimension() > best.getDimension()) best = part;
+            }
+            return best != null && addFeature(best, properties, id);
+        } else {
+            throw new UnsupportedOperationException("Unsupported geometry type " + geometry.getGeometryType());
+        }
+
+        if (commands.isEmpty()) return false;
+
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(baos);
+
+            if (id != null && id >= 0) out.writeUInt64(FEATURE_ID, id);
+
+            if (properties != null && !properties.isEmpty()) {
+                List<Integer> tags = new ArrayList<>();
+                for (Map.Entry<String, Object> e : properties.entrySet()) {
+                    Object val = e.getValue();
+                    if (val == null) continue;
+                    tags.add(keyIndex(e.getKey()));
+                    tags.add(valueIndex(val));
+                }
+                writePacked(out, FEATURE_TAGS, tags);
+            }
+
+            out.writeEnum(FEATURE_TYPE, type);
+            writePacked(out, FEATURE_GEOMETRY, commands);
+            out.flush();
+
+            features.add(baos.toByteArray());
+        } catch (IOException e) {
+            // writing to a byte array should never fail
+            throw new RuntimeException(e);
+        }
+
+        return true;
+    }
+
+    /** @return true if no features have been added */
+    public boolean isEmpty () {
+        return features.isEmpty();
+    }
+
+    /** Encode this layer as a complete tile */
+    public byte[] encode () {
+        try {
+            ByteArrayOutputStream layerBytes = new ByteArrayOutputStream();
+            CodedOutputStream layer = CodedOutputStream.newInstance(layerBytes);
+            layer.writeUInt32(LAYER_VERSION, 2);
+            layer.writeString(LAYER_NAME, layerName);
+            for (byte[] feature : features) {
+                layer.writeByteArray(LAYER_FEATURES, feature);
+            }
+            for (String key : keys) {
+                layer.writeString(LAYER_KEYS, key);
+            }
+            for (Object value : values) {
+                layer.writeByteArray(LAYER_VALUES, encodeValue(value));
+            }
+            layer.writeUInt32(LAYER_EXTENT, extent);
+            layer.flush();
+
+            ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+            CodedOutputStream tile = CodedOutputStream.newInstance(tileBytes);
+            tile.writeByteArray(TILE_LAYERS, layerBytes.toByteArray());
+            tile.flush();
+            return tileBytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int keyIndex (String key) {
+        Integer idx = keyIndices.get(key);
+        if (idx == null) {
+            idx = keys.size();
+            keys.add(key);
+            keyIndices.put(key, idx);
+        }
+        return idx;
+    }
+
+    private int valueIndex (Object value) {
+        // ints and longs with the same value are the same MVT value
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            value = ((Number) value).longValue();
+        else if (value instanceof Float)
+            value = ((Float) value).doubleValue();
+        else if (!(value instanceof Long || value instanceof Double || value instanceof Boolean || value instanceof String))
+            value = value.toString();
+
+        Integer idx = valueIndices.get(value);
+        if (idx == null) {
+            idx = values.size();
+            values.add(value);
+            valueIndices.put(value, idx);
+        }
+        return idx;
+    }
+
+    private static byte[] encodeValue (Object value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+
+        if (value instanceof String)
+            out.writeString(VALUE_STRING, (String) value);
+        else if (value instanceof Double)
+            out.writeDouble(VALUE_DOUBLE, (Double) value);
+        else if (value instanceof Boolean)
+            out.writeBool(VALUE_BOOL, (Boolean) value);
+        else {
+            long l = (Long) value;
+            if (l >= 0) out.writeUInt64(VALUE_UINT, l);
+            else out.writeSInt64(VALUE_SINT, l);
+        }
+
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private void encodePoints (Geometry geometry, List<Integer> commands, long[] cursor) {
+        List<long[]> points = new ArrayList<>();
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Point p = (Point) geometry.getGeometryN(i);
+            if (p.isEmpty()) continue;
+            long x = Math.round(p.getX()), y = Math.round(p.getY());
+            if (x < 0 || y < 0 || x > extent || y > extent) continue;
+            points.add(new long[] { x, y });
+        }
+
+        if (points.isEmpty()) return;
+
+        commands.add(command(CMD_MOVE_TO, points.size()));
+        for (long[] point : points) addDelta(point[0], point[1], commands, cursor);
+    }
+
+    private void encodeLine (CoordinateSequence seq, List<Integer> commands, long[] cursor) {
+        long[] xs = new long[seq.size()], ys = new long[seq.size()];
+        int n = quantize(seq, seq.size(), xs, ys);
+        if (n < 2) return;
+
+        commands.add(command(CMD_MOVE_TO, 1));
+        addDelta(xs[0], ys[0], commands, cursor);
+        commands.add(command(CMD_LINE_TO, n - 1));
+        for (int i = 1; i < n; i++) addDelta(xs[i], ys[i], commands, cursor);
+    }
+
+    /**
+     * Encode a ring, fixing winding order: the spec requires exterior rings to have positive area (clockwise on
+     * screen, where y points down) and interior rings negative area.
+     */
+    private boolean encodeRing (CoordinateSequence seq, boolean exterior, List<Integer> commands, long[] cursor) {
+        // rings are closed in JTS, MVT closes them implicitly
+        long[] xs = new long[seq.size()], ys = new long[seq.size()];
+        int n = quantize(seq, seq.size() - 1, xs, ys);
+        // drop the closing point if quantization made the last point equal to the first
+        while (n > 1 && xs[n - 1] == xs[0] && ys[n - 1] == ys[0]) n--;
+        if (n < 3) return false;
+
+        long area2 = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            area2 += xs[i] * ys[j] - xs[j] * ys[i];
+        }
+
+        if (area2 == 0) return false;
+
+        boolean reverse = exterior ? area2 < 0 : area2 > 0;
+        if (reverse) {
+            for (int i = 0, j = n - 1; i < j; i++, j--) {
+                long tx = xs[i]; xs[i] = xs[j]; xs[j] = tx;
+                long ty = ys[i]; ys[i] = ys[j]; ys[j] = ty;
+            }
+        }
+
+        commands.add(command(CMD_MOVE_TO, 1));
+        addDelta(xs[0], ys[0], commands, cursor);
+        commands.add(command(CMD_LINE_TO, n - 1));
+        for (int i = 1; i < n; i++) addDelta(xs[i], ys[i], commands, cursor);
+        commands.add(command(CMD_CLOSE_PATH, 1));
+        return true;
+    }
+
+    /** round the first n coordinates of seq to integers, dropping consecutive duplicates. Returns the number of points. */
+    private static int quantize (CoordinateSequence seq, int n, long[] xs, long[] ys) {
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            long x = Math.round(seq.getX(i));
+            long y = Math.round(seq.getY(i));
+            if (out > 0 && xs[out - 1] == x && ys[out - 1] == y) continue;
+            xs[out] = x;
+            ys[out] = y;
+            out++;
+        }
+        return out;
+    }
+
+    private static void addDelta (long x, long y, List<Integer> commands, long[] cursor) {
+        commands.add(zigzag(x - cursor[0]));
+        commands.add(zigzag(y - cursor[1]));
+        cursor[0] = x;
+        cursor[1] = y;
+    }
+
+    private static int command (int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag (long n) {
+        return (int) ((n << 1) ^ (n >> 63));
+    }
+
+    private static void writePacked (CodedOutputStream out, int field, List<Integer> ints) throws IOException {
+        int size = 0;
+        for (int i : ints) size += CodedOutputStream.computeUInt32SizeNoTag(i);
+        out.writeTag(field, 2); // WIRETYPE_LENGTH_DELIMITED
+        out.writeRawVarint32(size);
+        for (int i : ints) out.writeUInt32NoTag(i);
+    }
+}
@@ -0,0 +1,104 @@
+package com.conveyal.data.geobuf;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal protobuf wire format reader over a range of a ByteBuffer, using absolute positions so that many readers can
+ * share one buffer. Unlike CodedInputStream it can be reset to a new range without allocating, which makes it suitable
+ * for scanning every feature in a large file.
+ */
+final class WireReader {
+    private ByteBuffer buf;
+
+    /** current position and end of the range being read */
+    int pos, limit;
+
+    void reset (ByteBuffer buf, int pos, int limit) {
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+    }
+
+    boolean atEnd () {
+        return pos >= limit;
+    }
+
+    /** @return the next tag, or 0 at the end of the range */
+    int readTag () throws InvalidProtocolBufferException {
+        return atEnd() ? 0 : readVarint32();
+    }
+
+    long readVarint64 () throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) throw truncated();
+            byte b = buf.get(pos++);
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new InvalidProtocolBufferException("Malformed varint");
+    }
+
+    int readVarint32 () throws InvalidProtocolBufferException {
+        return (int) readVarint64();
+    }
+
+    double readDouble () throws InvalidProtocolBufferException {
+        if (pos + 8 > limit) throw truncated();
+        long bits = 0;
+        for (int i = 7; i >= 0; i--) bits = (bits << 8) | (buf.get(pos + i) & 0xff);
+        pos += 8;
+        return Double.longBitsToDouble(bits);
+    }
+
+    /** Read the length of a length-delimited field and return its end position; pos is left at the start of the field */
+    int readLengthDelimited () throws InvalidProtocolBufferException {
+        int length = readVarint32();
+        if (length < 0 || pos + length > limit) throw truncated();
+        return pos + length;
+    }
+
+    String readString (int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Compare the bytes in a range to an already-encoded UTF-8 string, without decoding */
+    boolean bytesEqual (int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.get(start + i) != expected[i]) return false;
+        }
+        return true;
+    }
+
+    void skipField (int tag) throws InvalidProtocolBufferException {
+        switch (tag & 0x7) {
+            case WireFormat.WIRETYPE_VARINT:
+                readVarint64();
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                pos += 8;
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                pos = readLengthDelimited();
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new InvalidProtocolBufferException("Invalid wire type " + (tag & 0x7));
+        }
+
+        if (pos > limit) throw truncated();
+    }
+
+    private static InvalidProtocolBufferException truncated () {
+        return new InvalidProtocolBufferException("Message truncated or length out of range");
+    }
+}
@@ -0,0 +1,218 @@
+package com.conveyal.data.geobuf;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test the block-compressed geobuf container.
+ */
+public class BlockGeobufTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testBlocks () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 95; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i / 10d, i / 20d));
+            feat.properties = new HashMap<>();
+            feat.properties.put("landuse", i % 2 == 0 ? "residential" : "commercial");
+            feat.properties.put("index", i);
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        File file = File.createTempFile("blocks", ".geobuf");
+        file.deleteOnExit();
+
+        try (BlockGeobufWriter writer = new BlockGeobufWriter(new FileOutputStream(file), 6, 2, 10, BlockCodec.DEFLATE)) {
+            writer.addAll(features);
+        }
+
+        // compression should beat a plain geobuf even with per-block keys
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        new GeobufEncoder(plain, 6).writeFeatureCollection(features);
+        assertTrue(file.length() < plain.size());
+
+        try (BlockGeobufReader reader = new BlockGeobufReader(file)) {
+            assertEquals(10, reader.blocks.size());
+            assertEquals(95, reader.size());
+            assertEquals(5, reader.blocks.get(9).featureCount);
+
+            // random access
+            for (long idx : new long[] { 0, 9, 10, 57, 94 }) {
+                GeobufFeature feat = reader.getFeature(idx);
+                assertEquals(idx, feat.numericId);
+                assertEquals(idx, feat.properties.get("index"));
+                assertEquals(idx / 10d, feat.geometry.getCoordinate().x, 1e-9);
+            }
+
+            int count = 0;
+            for (GeobufFeature feat : reader) {
+                assertEquals(count++, feat.numericId);
+            }
+            assertEquals(95, count);
+        }
+    }
+
+    /** files written before statistics were added can still be read */
+    @Test
+    public void testVersion1 () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, i));
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (BlockGeobufWriter writer = new BlockGeobufWriter(baos, 6, 2, 10, BlockCodec.DEFLATE)) {
+            writer.setCollectStatistics(false);
+            writer.addAll(features);
+        }
+
+        // rewrite as version 1, which has no statistics flag after each block in the index
+        byte[] v2 = baos.toByteArray();
+        ByteBuffer buf = ByteBuffer.wrap(v2);
+        int indexOffset = (int) buf.getLong(v2.length - 16);
+        int blockCount = buf.getInt(indexOffset);
+
+        ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(v1);
+        out.write(BlockGeobufWriter.MAGIC);
+        out.writeInt(1);
+        out.write(v2, 12, indexOffset - 12);
+        out.writeInt(blockCount);
+        for (int i = 0, pos = indexOffset + 4; i < blockCount; i++, pos += 22) {
+            // offset, compressed length, uncompressed length, feature count and codec
+            out.write(v2, pos, 21);
+        }
+        out.writeLong(indexOffset);
+        out.write(BlockGeobufWriter.MAGIC);
+
+        File file = File.createTempFile("blocks", ".geobuf");
+        file.deleteOnExit();
+        Files.write(v1.toByteArray(), file);
+
+        try (BlockGeobufReader reader = new BlockGeobufReader(file)) {
+            assertEquals(3, reader.blocks.size());
+            assertEquals(25, reader.size());
+            assertNull(reader.blocks.get(0).statistics);
+            assertEquals(17L, reader.getFeature(17).numericId);
+
+            List<GeobufFeature> result = reader.query(new Envelope(4.5, 12.5, 0, 100), GeobufFilter.range("index", 0, 10));
+            assertEquals(6, result.size());
+            assertEquals(5L, result.get(0).numericId);
+        }
+    }
+
+    @Test
+    public void testStatistics () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            // features are spatially sorted, so blocks of ten have disjoint bounding boxes
+            feat.geometry = gf.createPoint(new Coordinate(i, i / 2d));
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            // only blocks 2 and 7 have industrial land use
+            feat.properties.put("landuse", i / 10 == 2 || i / 10 == 7 ? "industrial" : "residential");
+            // names in block 1 are too long to record
+            String name = "feature " + i;
+            if (i / 10 == 1) name += String.join("", Collections.nCopies(BlockStatistics.MAX_STRING_LENGTH, " "));
+            feat.properties.put("name", name);
+            if (i >= 50) feat.properties.put("late", true);
+            // written as a string by the encoder
+            feat.properties.put("floors", (short) (i % 10));
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        File file = File.createTempFile("blocks", ".geobuf");
+        file.deleteOnExit();
+
+        try (BlockGeobufWriter writer = new BlockGeobufWriter(new FileOutputStream(file), 6, 2, 10, BlockCodec.DEFLATE)) {
+            writer.addAll(features);
+        }
+
+        try (BlockGeobufReader reader = new BlockGeobufReader(file)) {
+            BlockStatistics stats = reader.blocks.get(3).statistics;
+            // padded by a fixed-point unit for rounding
+            Envelope expected = new Envelope(30, 39, 15, 19.5);
+            expected.expandBy(1e-6);
+            assertEquals(expected, stats.envelope);
+            assertEquals(30d, stats.columns.get("index").min);
+            assertEquals(39d, stats.columns.get("index").max);
+            assertEquals(1, stats.columns.get("landuse").strings.size());
+            assertEquals(10, stats.columns.get("name").strings.size());
+            assertNull(reader.blocks.get(1).statistics.columns.get("name").strings);
+
+            assertEquals(Arrays.asList(4, 5), reader.candidateBlocks(new Envelope(45, 52, 0, 100), null));
+            assertEquals(Arrays.asList(2, 7), reader.candidateBlocks(null, GeobufFilter.eq("landuse", "industrial")));
+            assertEquals(Arrays.asList(7), reader.candidateBlocks(null, GeobufFilter.and(
+                    GeobufFilter.eq("landuse", "industrial"), GeobufFilter.range("index", 60, 90))));
+            assertEquals(Arrays.asList(0, 4), reader.candidateBlocks(null, GeobufFilter.or(
+                    GeobufFilter.range("index", 0, 5), GeobufFilter.range("index", 45, 46))));
+            assertEquals(Arrays.asList(5, 6, 7, 8, 9), reader.candidateBlocks(null, GeobufFilter.eq("late", true)));
+            assertTrue(reader.candidateBlocks(null, GeobufFilter.eq("late", false)).isEmpty());
+            assertTrue(reader.candidateBlocks(null, GeobufFilter.eq("missing", 1)).isEmpty());
+            // strings that were not recorded might be in the block
+            assertEquals(Arrays.asList(1, 3), reader.candidateBlocks(null, GeobufFilter.in("name", "feature 12", "feature 34")));
+            // values the encoder writes with toString are recorded as strings
+            assertTrue(stats.columns.get("floors").hasStrings);
+            assertEquals(10, reader.candidateBlocks(null, GeobufFilter.eq("floors", (short) 5)).size());
+            assertEquals(10, reader.query(null, GeobufFilter.eq("floors", "5")).size());
+            // negation cannot skip blocks
+            assertEquals(10, reader.candidateBlocks(null, GeobufFilter.not(GeobufFilter.eq("landuse", "industrial"))).size());
+
+            List<GeobufFeature> result = reader.query(new Envelope(20, 75, 0, 100), GeobufFilter.eq("landuse", "industrial"));
+            assertEquals(16, result.size());
+            assertEquals(20L, result.get(0).numericId);
+            assertEquals(75L, result.get(15).numericId);
+        }
+
+        // a query edge between an original coordinate and its rounded, decoded value still finds the feature
+        GeobufFeature rounded = new GeobufFeature();
+        rounded.geometry = gf.createPoint(new Coordinate(10.0000004, 5));
+        rounded.properties = new HashMap<>();
+        try (BlockGeobufWriter writer = new BlockGeobufWriter(new FileOutputStream(file), 6, 2, 10, BlockCodec.DEFLATE)) {
+            writer.add(rounded);
+        }
+
+        try (BlockGeobufReader reader = new BlockGeobufReader(file)) {
+            List<GeobufFeature> result = reader.query(new Envelope(9, 10.0000001, 0, 10), null);
+            assertEquals(1, result.size());
+            assertEquals(10d, result.get(0).geometry.getCoordinate().x, 1e-9);
+        }
+
+        // statistics are optional
+        try (BlockGeobufWriter writer = new BlockGeobufWriter(new FileOutputStream(file), 6, 2, 10, BlockCodec.DEFLATE)) {
+            writer.setCollectStatistics(false);
+            writer.addAll(features);
+        }
+
+        try (BlockGeobufReader reader = new BlockGeobufReader(file)) {
+            assertNull(reader.blocks.get(0).statistics);
+            assertEquals(10, reader.candidateBlocks(new Envelope(45, 52, 0, 100), null).size());
+            assertEquals(8, reader.query(new Envelope(45, 52, 0, 100), null).size());
+        }
+    }
+}
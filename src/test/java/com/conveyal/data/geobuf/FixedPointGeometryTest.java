@@ -0,0 +1,153 @@
+package com.conveyal.data.geobuf;
+
+import geobuf.Geobuf;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test decoding geometries in fixed-point coordinates, and integer area, centroid and bounding box.
+ */
+public class FixedPointGeometryTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testFixedPoint () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+
+        // a one degree square with a quarter-degree-square hole, wound the same way as the shell
+        features.add(feature(gf.createPolygon(TestFeatures.ring(gf, 10, 20, 11, 20, 11, 21, 10, 21),
+                new LinearRing[] { TestFeatures.ring(gf, 10.25, 20.25, 10.75, 20.25, 10.75, 20.75, 10.25, 20.75) })));
+
+        // a multipolygon, one part of which is wound the other way
+        features.add(feature(gf.createMultiPolygon(new Polygon[] {
+                gf.createPolygon(TestFeatures.ring(gf, -122.55, 45.50, -122.52, 45.50, -122.52, 45.53)),
+                gf.createPolygon(TestFeatures.ring(gf, -122.50, 45.52, -122.49, 45.55, -122.47, 45.51, -122.48, 45.49))
+        })));
+
+        features.add(feature(gf.createPoint(new Coordinate(-77.036541, 38.897695))));
+
+        File file = File.createTempFile("fixed", ".geobuf");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        List<FixedPointGeometry> geometries = new ArrayList<>();
+        GeobufMetrics.SimpleRegistry registry = new GeobufMetrics.SimpleRegistry();
+        GeobufMetrics.bind(registry);
+        try {
+            GeobufDecoder expected = new GeobufDecoder(new FileInputStream(file));
+            GeobufDecoder decoder = new GeobufDecoder(new FileInputStream(file));
+            decoder.setFixedPoint(true);
+
+            while (decoder.hasNext()) {
+                GeobufFeature feature = decoder.next();
+                Geometry geom = expected.next().geometry;
+
+                assertNull(feature.geometry);
+                FixedPointGeometry fixed = feature.fixedPointGeometry;
+                assertEquals(6, fixed.precision);
+                assertTrue(geom.equalsExact(fixed.toGeometry(gf)));
+
+                Envelope env = geom.getEnvelopeInternal();
+                long[] bbox = fixed.bbox();
+                assertEquals(Math.round(env.getMinX() * 1e6), bbox[0]);
+                assertEquals(Math.round(env.getMinY() * 1e6), bbox[1]);
+                assertEquals(Math.round(env.getMaxX() * 1e6), bbox[2]);
+                assertEquals(Math.round(env.getMaxY() * 1e6), bbox[3]);
+
+                assertEquals(geom.getArea(), fixed.area(), 1e-9);
+
+                Coordinate centroid = geom.getCentroid().getCoordinate();
+                assertEquals(centroid.x * 1e6, fixed.centroid()[0], 1);
+                assertEquals(centroid.y * 1e6, fixed.centroid()[1], 1);
+
+                geometries.add(fixed);
+            }
+            assertEquals(3, geometries.size());
+        } finally {
+            GeobufMetrics.unbind();
+        }
+
+        // both decode paths record timings under the same names
+        assertEquals(2, registry.getHistogram(GeobufMetrics.DECODE_GEOMETRY_NANOS + ".Polygon").count());
+        assertEquals(2, registry.getHistogram(GeobufMetrics.DECODE_GEOMETRY_NANOS + ".MultiPolygon").count());
+        assertNull(registry.getHistogram(GeobufMetrics.DECODE_GEOMETRY_NANOS + ".MULTIPOLYGON"));
+
+        // the area of the square with a hole is exact
+        FixedPointGeometry square = geometries.get(0);
+        assertEquals(Geobuf.Data.Geometry.Type.POLYGON, square.type);
+        assertEquals(2, square.getNumRings());
+        assertTrue(square.isShell(0));
+        assertFalse(square.isShell(1));
+        assertEquals(2 * (1_000_000d * 1_000_000d - 500_000d * 500_000d), square.twiceArea(), 0);
+        assertEquals(10_500_000L, square.centroid()[0]);
+        assertEquals(20_500_000L, square.centroid()[1]);
+
+        FixedPointGeometry multi = geometries.get(1);
+        assertEquals(2, multi.getNumPolygons());
+        assertEquals(7, multi.getNumCoordinates());
+        assertTrue(multi.isShell(1));
+
+        FixedPointGeometry point = geometries.get(2);
+        assertEquals(0, point.twiceArea(), 0);
+        assertEquals(-77_036_541L, point.centroid()[0]);
+        assertEquals(38_897_695L, point.centroid()[1]);
+
+        // the feature view decodes the same geometries
+        GeobufCursor cursor = GeobufCursor.open(file);
+        GeobufFeatureView view = cursor.view();
+        for (FixedPointGeometry geom : geometries) {
+            assertTrue(cursor.next());
+            assertEquals(geom, view.getFixedPointGeometry());
+            assertEquals(geom.hashCode(), view.getFixedPointGeometry().hashCode());
+        }
+        assertFalse(cursor.next());
+    }
+
+    /** at the maximum precision the cross products of a realistic polygon no longer fit in a long */
+    @Test
+    public void testMaximumPrecision () throws Exception {
+        // a triangle about a kilometer across, with a hole
+        Polygon triangle = gf.createPolygon(
+                TestFeatures.ring(gf, -122.7012345678901, 45.5012345678901, -122.6884345678901, 45.5012345678901,
+                        -122.6948345678901, 45.5102345678901),
+                new LinearRing[] { TestFeatures.ring(gf, -122.6952345678901, 45.5032345678901, -122.6944345678901,
+                        45.5032345678901, -122.6948345678901, 45.5042345678901) });
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        List<GeobufFeature> features = Arrays.asList(feature(triangle));
+        GeobufEncoder.withDetectedPrecision(baos, features).writeFeatureCollection(features);
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+        decoder.setFixedPoint(true);
+        FixedPointGeometry fixed = decoder.next().fixedPointGeometry;
+        assertEquals(GeobufEncoder.MAX_PRECISION, fixed.precision);
+
+        Geometry geom = fixed.toGeometry(gf);
+        assertEquals(geom.getArea(), fixed.area(), geom.getArea() * 1e-12);
+
+        // within a few units, i.e. a few hundred-billionths of a degree
+        Coordinate centroid = geom.getCentroid().getCoordinate();
+        assertEquals(centroid.x * 1e12, fixed.centroid()[0], 10);
+        assertEquals(centroid.y * 1e12, fixed.centroid()[1], 10);
+    }
+
+    private GeobufFeature feature (Geometry geometry) {
+        GeobufFeature feature = new GeobufFeature();
+        feature.geometry = geometry;
+        feature.properties = new HashMap<>();
+        return feature;
+    }
+}
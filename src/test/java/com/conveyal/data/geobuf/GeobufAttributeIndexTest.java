@@ -0,0 +1,113 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test finding features by property value using a sidecar index.
+ */
+public class GeobufAttributeIndexTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private static final String[] ZONES = { "R1", "R2", "C1", "M1" };
+
+    @Test
+    public void testAttributeIndex () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) features.add(parcel(i));
+
+        File file = File.createTempFile("parcels", ".geobuf");
+        file.deleteOnExit();
+        File zoningIndexFile = GeobufAttributeIndex.indexFile(file, "zoning");
+        zoningIndexFile.deleteOnExit();
+        File yearIndexFile = GeobufAttributeIndex.indexFile(file, "year built");
+        yearIndexFile.deleteOnExit();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        GeobufAttributeIndex zoning = GeobufAttributeIndex.open(file, "zoning");
+        GeobufAttributeIndex year = GeobufAttributeIndex.open(file, "year built");
+        assertTrue(zoningIndexFile.exists());
+        assertEquals(1000, zoning.featuresScanned);
+        assertEquals(1000, zoning.size());
+        // every seventh parcel has no year
+        assertEquals(1000 - 143, year.size());
+
+        List<GeobufFeature> c1 = zoning.getEqual("C1");
+        assertEquals(250, c1.size());
+        long previous = -1;
+        for (GeobufFeature feat : c1) {
+            assertEquals("C1", feat.properties.get("zoning"));
+            // returned in file order
+            assertTrue(feat.numericId > previous);
+            previous = feat.numericId;
+        }
+
+        assertTrue(zoning.getEqual("B1").isEmpty());
+        assertEquals(500, zoning.getRange("M", "R1").size());
+
+        assertEquals(expectedYears(1000, 1950, 1959), year.getRange(1950, 1959).size());
+        assertEquals(expectedYears(1000, 1999, 1999), year.getEqual(1999).size());
+        assertTrue(year.getRange(2100, Double.POSITIVE_INFINITY).isEmpty());
+
+        // append more parcels, with a new key
+        try (StreamingGeobufWriter writer = StreamingGeobufWriter.append(file, 100)) {
+            for (int i = 1000; i < 1500; i++) {
+                GeobufFeature feat = parcel(i);
+                feat.properties.put("appended", true);
+                writer.add(feat);
+            }
+        }
+
+        // only the appended parcels are read
+        zoning = GeobufAttributeIndex.open(file, "zoning");
+        assertEquals(500, zoning.featuresScanned);
+        assertEquals(1500, zoning.size());
+        assertEquals(375, zoning.getEqual("C1").size());
+        assertEquals(375, zoning.getEqual("R1").size());
+        assertEquals(0, GeobufAttributeIndex.open(file, "zoning").featuresScanned);
+        for (GeobufFeature feat : zoning.getEqual("M1")) {
+            assertEquals(feat.numericId >= 1000, feat.properties.containsKey("appended"));
+            assertEquals(feat.numericId, feat.geometry.getCoordinate().x, 1e-6);
+        }
+
+        year = GeobufAttributeIndex.open(file, "year built");
+        assertEquals(500, year.featuresScanned);
+        assertEquals(expectedYears(1500, 1950, 1959), year.getRange(1950, 1959).size());
+
+        // index of a key that only appears in the appended features
+        GeobufAttributeIndex appended = GeobufAttributeIndex.open(file, "appended");
+        assertEquals(1500, appended.featuresScanned);
+        assertEquals(500, appended.getEqual(true).size());
+        GeobufAttributeIndex.indexFile(file, "appended").deleteOnExit();
+    }
+
+    private GeobufFeature parcel (int i) {
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = gf.createPoint(new Coordinate(i, i));
+        feat.properties = new HashMap<>();
+        feat.properties.put("zoning", ZONES[i % ZONES.length]);
+        if (i % 7 != 0) feat.properties.put("year built", 1900 + i % 120);
+        feat.numericId = i;
+        return feat;
+    }
+
+    private static int expectedYears (int count, int min, int max) {
+        int expected = 0;
+        for (int i = 0; i < count; i++) {
+            int year = 1900 + i % 120;
+            if (i % 7 != 0 && year >= min && year <= max) expected++;
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,201 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Test scanning geobufs with a cursor and feature view.
+ */
+public class GeobufCursorTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testCursor () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i / 10d, -i / 20d));
+            feat.properties = new HashMap<>();
+            feat.properties.put("landuse", i % 2 == 0 ? "residential" : "commercial");
+            feat.properties.put("index", i);
+            feat.properties.put("area", i * 1.5);
+            feat.properties.put("occupied", i % 3 == 0);
+            if (i % 5 == 0) feat.properties.put("sparse", -i);
+            if (i % 2 == 0) feat.numericId = i;
+            else feat.id = "feature " + i;
+            features.add(feat);
+        }
+
+        File file = File.createTempFile("cursor", ".geobuf");
+        file.deleteOnExit();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        GeobufCursor cursor = GeobufCursor.open(file);
+        GeobufFeatureView view = cursor.view();
+        int count = 0;
+
+        while (cursor.next()) {
+            int i = count++;
+            GeobufFeature expected = features.get(i);
+
+            assertEquals(expected.properties.get("landuse"), view.get("landuse"));
+            assertEquals((long) i, view.get("index"));
+            assertEquals(i * 1.5, view.get("area"));
+            assertEquals(i % 3 == 0, view.get("occupied"));
+            assertEquals(i % 5 == 0, view.has("sparse"));
+            assertNull(view.get("nonexistent"));
+            assertEquals(expected.properties.size(), view.getPropertyCount());
+
+            if (i % 2 == 0) {
+                assertTrue(view.hasNumericId());
+                assertEquals(i, view.getNumericId());
+            } else {
+                assertFalse(view.hasNumericId());
+                assertEquals(expected.id, view.getId());
+            }
+
+            assertTrue(expected.geometry.equalsExact(view.getGeometry(), 1e-6));
+
+            GeobufFeature copy = view.toFeature();
+            assertEquals(expected.id, copy.id);
+            assertEquals(expected.numericId, copy.numericId);
+            assertTrue(expected.geometry.equalsExact(copy.geometry, 1e-6));
+            assertEquals(expected.properties.keySet(), copy.properties.keySet());
+        }
+
+        assertEquals(features.size(), count);
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testTypedAccess () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, i));
+            feat.properties = new HashMap<>();
+            feat.properties.put("population", i * 1000);
+            feat.properties.put("offset", -i);
+            feat.properties.put("density", i / 4d);
+            feat.properties.put("name", "tract " + i);
+            if (i % 2 == 0) feat.properties.put("vacant", i);
+            features.add(feat);
+        }
+
+        File file = File.createTempFile("typed", ".geobuf");
+        file.deleteOnExit();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        GeobufCursor cursor = GeobufCursor.open(file);
+        GeobufFeatureView view = cursor.view();
+        int population = -1, offset = -1, density = -1, name = -1, vacant = -1;
+
+        int count = 0;
+        while (cursor.next()) {
+            if (count == 0) {
+                population = cursor.keyIndex("population");
+                offset = cursor.keyIndex("offset");
+                density = cursor.keyIndex("density");
+                name = cursor.keyIndex("name");
+                vacant = cursor.keyIndex("vacant");
+            }
+
+            int i = count++;
+            assertEquals(i * 1000L, view.getLong(population));
+            assertEquals(i * 1000d, view.getDouble(population));
+            assertEquals(-i, view.getLong(offset));
+            assertEquals(i / 4d, view.getDouble(density));
+            assertEquals("tract " + i, view.getString(name));
+            assertNull(view.getString(population));
+            assertEquals(i % 2 != 0, view.isNull(vacant));
+            assertEquals(i % 2 == 0 ? i : 0, view.getLong(vacant));
+
+            // lookups by name, and for keys not in the file
+            assertEquals(i / 4d, view.getDouble("density"));
+            assertTrue(view.isNull("nonexistent"));
+            assertEquals(0, view.getLong("nonexistent"));
+        }
+
+        assertEquals(20, count);
+    }
+
+    @Test
+    public void testFilter () throws Exception {
+        String[] landuses = { "residential", "commercial", "industrial" };
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, i));
+            feat.properties = new HashMap<>();
+            feat.properties.put("landuse", landuses[i % 3]);
+            feat.properties.put("population", i * 10 - 500);
+            feat.properties.put("density", i / 3d);
+            if (i % 4 == 0) feat.properties.put("historic", i % 8 == 0);
+            // written as a string by the encoder
+            feat.properties.put("floors", (short) (i % 10));
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new GeobufEncoder(baos, 6).writeFeatureCollection(features);
+        byte[] bytes = baos.toByteArray();
+
+        assertFiltered(bytes, GeobufFilter.eq("landuse", "residential"), i -> i % 3 == 0);
+        assertFiltered(bytes, GeobufFilter.in("landuse", "commercial", "industrial"), i -> i % 3 != 0);
+        assertFiltered(bytes, GeobufFilter.in("population", -500, 0, 1000), i -> i == 0 || i == 50 || i == 150);
+        assertFiltered(bytes, GeobufFilter.range("population", -100, 100), i -> i >= 40 && i <= 60);
+        assertFiltered(bytes, GeobufFilter.range("density", 10, 20.5), i -> i >= 30 && i <= 61);
+        assertFiltered(bytes, GeobufFilter.eq("density", 7), i -> i == 21);
+        assertFiltered(bytes, GeobufFilter.eq("historic", true), i -> i % 8 == 0);
+        assertFiltered(bytes, GeobufFilter.not(GeobufFilter.eq("historic", true)), i -> i % 8 != 0);
+        assertFiltered(bytes, GeobufFilter.and(GeobufFilter.eq("landuse", "residential"),
+                GeobufFilter.range("population", 0, Double.POSITIVE_INFINITY)), i -> i % 3 == 0 && i >= 50);
+        assertFiltered(bytes, GeobufFilter.or(GeobufFilter.eq("landuse", "industrial"), GeobufFilter.eq("nonexistent", 1)),
+                i -> i % 3 == 2);
+        // types the encoder writes with toString are matched as strings
+        assertFiltered(bytes, GeobufFilter.eq("floors", (short) 5), i -> i % 10 == 5);
+        assertFiltered(bytes, GeobufFilter.eq("floors", "5"), i -> i % 10 == 5);
+        // type mismatches and missing keys don't match
+        assertFiltered(bytes, GeobufFilter.eq("landuse", 1), i -> false);
+        assertFiltered(bytes, GeobufFilter.eq("nonexistent", "residential"), i -> false);
+    }
+
+    private void assertFiltered (byte[] bytes, GeobufFilter filter, IntPredicate expected) throws Exception {
+        List<Long> expectedIds = new ArrayList<>();
+        for (int i = 0; i < 300; i++) if (expected.test(i)) expectedIds.add((long) i);
+
+        List<Long> decoded = new ArrayList<>();
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(bytes), filter);
+        while (decoder.hasNext()) {
+            GeobufFeature feat = decoder.next();
+            assertEquals((double) feat.numericId, feat.geometry.getCoordinate().x, 1e-9);
+            decoded.add(feat.numericId);
+        }
+        assertEquals(expectedIds, decoded);
+
+        List<Long> scanned = new ArrayList<>();
+        GeobufCursor cursor = new GeobufCursor(ByteBuffer.wrap(bytes));
+        cursor.setFilter(filter);
+        while (cursor.next()) scanned.add(cursor.view().getNumericId());
+        assertEquals(expectedIds, scanned);
+    }
+}
@@ -0,0 +1,125 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test looking up features by ID using a sidecar index.
+ */
+public class GeobufIdIndexTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testIdIndex () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, -i));
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            // a mix of string and numeric IDs, as in shapefile FIDs and OSM IDs
+            if (i % 3 == 0) feat.id = "roads." + i;
+            else feat.numericId = i * 1000L;
+            features.add(feat);
+        }
+
+        // a duplicate ID, the first feature should be found
+        GeobufFeature dup = features.get(3).clone();
+        dup.properties = new HashMap<>();
+        dup.properties.put("index", -1);
+        features.add(dup);
+
+        File file = File.createTempFile("ids", ".geobuf");
+        file.deleteOnExit();
+        File indexFile = GeobufIdIndex.indexFile(file);
+        indexFile.deleteOnExit();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        GeobufIdIndex index = GeobufIdIndex.open(file);
+        assertTrue(indexFile.exists());
+        assertEquals(501, index.size());
+
+        for (int i = 0; i < 500; i++) {
+            GeobufFeature feat = i % 3 == 0 ? index.get("roads." + i) : index.get(i * 1000L);
+            assertNotNull(feat);
+            assertEquals((long) i, feat.properties.get("index"));
+            assertEquals((double) i, feat.geometry.getCoordinate().x, 1e-6);
+        }
+
+        assertNull(index.get("roads.1"));
+        assertNull(index.get(1L));
+        assertNull(index.get("missing"));
+
+        // appending makes the index stale, so it is rebuilt on the next open
+        GeobufFeature appended = new GeobufFeature();
+        appended.geometry = gf.createPoint(new Coordinate(1, 1));
+        appended.properties = new HashMap<>();
+        appended.id = "appended";
+        try (StreamingGeobufWriter writer = StreamingGeobufWriter.append(file, 10)) {
+            writer.add(appended);
+        }
+
+        index = GeobufIdIndex.open(file);
+        assertEquals(502, index.size());
+        assertEquals(1, index.get("appended").geometry.getCoordinate().x, 1e-6);
+        assertEquals(499L, index.get(499000L).properties.get("index"));
+
+        index.close();
+        try {
+            index.get("appended");
+            fail("lookups should fail once the index is closed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** a rewrite of the same length with the same modification time is detected by the checksum */
+    @Test
+    public void testSameLengthRewrite () throws Exception {
+        File file = File.createTempFile("ids", ".geobuf");
+        file.deleteOnExit();
+        GeobufIdIndex.indexFile(file).deleteOnExit();
+
+        writeIds(file, "first");
+        long lastModified = file.lastModified();
+        GeobufIdIndex index = GeobufIdIndex.open(file);
+        assertNotNull(index.get("first"));
+        index.close();
+
+        long length = file.length();
+        writeIds(file, "other");
+        assertTrue(file.setLastModified(lastModified));
+        assertEquals(length, file.length());
+
+        index = GeobufIdIndex.open(file);
+        assertNull(index.get("first"));
+        assertEquals(9, index.get("other").geometry.getCoordinate().x, 1e-6);
+        index.close();
+    }
+
+    private void writeIds (File file, String lastId) throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, i));
+            feat.properties = new HashMap<>();
+            feat.id = i == 9 ? lastId : "feature " + i;
+            features.add(feat);
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test merging geobufs without decoding them.
+ */
+public class GeobufMergerTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testMerge () throws Exception {
+        List<File> inputs = new ArrayList<>();
+        List<GeobufFeature> expected = new ArrayList<>();
+
+        for (int file = 0; file < 5; file++) {
+            List<GeobufFeature> features = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                GeobufFeature feat = new GeobufFeature();
+                feat.geometry = gf.createPolygon(new Coordinate[] {
+                        new Coordinate(file, i), new Coordinate(file + 1, i), new Coordinate(file + 1, i + 1),
+                        new Coordinate(file, i)
+                });
+                feat.properties = new HashMap<>();
+                feat.properties.put("county", "county " + file);
+                feat.properties.put("index", i);
+                // keys that only some files have, so that key indices differ between files
+                feat.properties.put("only" + file, file * 1.5);
+                feat.numericId = file * 100 + i;
+                features.add(feat);
+            }
+
+            File input = File.createTempFile("merge", ".geobuf");
+            input.deleteOnExit();
+
+            if (file == 3) {
+                // a file written in several fragments
+                try (StreamingGeobufWriter writer = new StreamingGeobufWriter(new FileOutputStream(input), 6, 2, 7)) {
+                    writer.addAll(features);
+                }
+            } else {
+                try (FileOutputStream fos = new FileOutputStream(input)) {
+                    new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+                }
+            }
+
+            inputs.add(input);
+            expected.addAll(features);
+        }
+
+        File output = File.createTempFile("merged", ".geobuf");
+        output.deleteOnExit();
+
+        assertEquals(150, GeobufMerger.merge(inputs, output, 2));
+
+        GeobufDecoder decoder = new GeobufDecoder(new FileInputStream(output));
+        for (GeobufFeature exp : expected) {
+            GeobufFeature feat = decoder.next();
+            assertEquals(exp.numericId, feat.numericId);
+            assertEquals(exp.properties.size(), feat.properties.size());
+            assertEquals(exp.properties.get("county"), feat.properties.get("county"));
+            long file = exp.numericId / 100;
+            assertEquals(file * 1.5, feat.properties.get("only" + file));
+            assertEquals(((Number) exp.properties.get("index")).longValue(), feat.properties.get("index"));
+            assertTrue(exp.geometry.equalsExact(feat.geometry, 1e-6));
+        }
+        assertFalse(decoder.hasNext());
+
+        // inputs with different precision cannot be merged without decoding
+        File other = File.createTempFile("merge", ".geobuf");
+        other.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(other)) {
+            new GeobufEncoder(fos, 5).writeFeatureCollection(expected.subList(0, 1));
+        }
+        inputs.add(other);
+
+        try {
+            GeobufMerger.merge(inputs, output, 2);
+            fail("Expected precision mismatch");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
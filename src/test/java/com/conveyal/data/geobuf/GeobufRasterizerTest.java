@@ -0,0 +1,122 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Test that rasterized coverage matches the exact area of intersection of polygons with pixels.
+ */
+public class GeobufRasterizerTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testRasterize () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+
+        // an irregular polygon with a hole, wound the same way as the shell
+        GeobufFeature withHole = new GeobufFeature();
+        withHole.geometry = gf.createPolygon(
+                TestFeatures.ring(gf, -122.70, 45.50, -122.60, 45.51, -122.58, 45.58, -122.66, 45.60, -122.69, 45.55),
+                new LinearRing[] { TestFeatures.ring(gf, -122.66, 45.53, -122.63, 45.535, -122.64, 45.56) });
+        withHole.properties = new HashMap<>();
+        withHole.properties.put("population", 1000);
+        features.add(withHole);
+
+        // a multipolygon, one part of which is wound the other way
+        GeobufFeature multi = new GeobufFeature();
+        multi.geometry = gf.createMultiPolygon(new Polygon[] {
+                gf.createPolygon(TestFeatures.ring(gf, -122.55, 45.50, -122.52, 45.50, -122.52, 45.53)),
+                gf.createPolygon(TestFeatures.ring(gf, -122.50, 45.52, -122.49, 45.55, -122.47, 45.51))
+        });
+        multi.properties = new HashMap<>();
+        multi.properties.put("population", 250.5);
+        features.add(multi);
+
+        // a polygon without the weight property
+        GeobufFeature unweighted = new GeobufFeature();
+        unweighted.geometry = gf.createPolygon(TestFeatures.ring(gf, -122.45, 45.50, -122.44, 45.50, -122.44, 45.51));
+        unweighted.properties = new HashMap<>();
+        features.add(unweighted);
+
+        File file = File.createTempFile("polygons", ".geobuf");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // at zoom 12 the first polygon spans several tiles
+            GeobufRasterizer.Grid coverage = GeobufRasterizer.Grid.forBounds(12, -122.75, 45.45, -122.40, 45.65);
+            assertEquals(3, GeobufRasterizer.rasterize(file, coverage, null, pool));
+            assertTrue(coverage.width > GeobufRasterizer.TILE_SIZE * 3);
+
+            // compare every cell with the intersection of the decoded, projected polygons with the pixel
+            List<PreparedGeometry> projected = new ArrayList<>();
+            GeobufDecoder decoder = new GeobufDecoder(new FileInputStream(file));
+            while (decoder.hasNext()) projected.add(PreparedGeometryFactory.prepare(project(decoder.next().geometry, coverage)));
+
+            double total = 0;
+            for (int y = 0; y < coverage.height; y++) {
+                for (int x = 0; x < coverage.width; x++) {
+                    Envelope envelope = new Envelope(x, x + 1, y, y + 1);
+                    double expected = 0;
+                    for (PreparedGeometry geom : projected) {
+                        if (!geom.getGeometry().getEnvelopeInternal().intersects(envelope)) continue;
+                        // only compute the intersection for pixels on the boundary
+                        Geometry pixel = gf.toGeometry(envelope);
+                        if (geom.containsProperly(pixel)) expected += 1;
+                        else if (geom.intersects(pixel)) expected += geom.getGeometry().intersection(pixel).getArea();
+                    }
+                    assertEquals(expected, coverage.get(x, y), 1e-6);
+                    total += expected;
+                }
+            }
+            assertTrue(total > 10000);
+            assertEquals(total, coverage.sum(), 1e-6);
+
+            // weights are distributed in proportion to area, and features without a weight are skipped
+            GeobufRasterizer.Grid population = GeobufRasterizer.Grid.forBounds(10, -122.75, 45.45, -122.40, 45.65);
+            assertEquals(2, GeobufRasterizer.rasterize(file, population, "population", pool));
+            assertEquals(1250.5, population.sum(), 1e-6);
+
+            // parts of polygons outside the grid are lost
+            GeobufRasterizer.Grid clipped = GeobufRasterizer.Grid.forBounds(12, -122.65, 45.45, -122.40, 45.65);
+            GeobufRasterizer.rasterize(file, clipped, "population", pool);
+            assertTrue(clipped.sum() > 250.5);
+            assertTrue(clipped.sum() < 1250.5);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Geometry project (Geometry geom, GeobufRasterizer.Grid grid) {
+        Geometry projected = geom.copy();
+        projected.apply(new CoordinateSequenceFilter() {
+            @Override public void filter (CoordinateSequence seq, int i) {
+                seq.setOrdinate(i, 0, GeobufRasterizer.lonToPixel(seq.getX(i), grid.zoom) - grid.west);
+                seq.setOrdinate(i, 1, GeobufRasterizer.latToPixel(seq.getY(i), grid.zoom) - grid.north);
+            }
+
+            @Override public boolean isDone () {
+                return false;
+            }
+
+            @Override public boolean isGeometryChanged () {
+                return true;
+            }
+        });
+        return projected;
+    }
+}
@@ -0,0 +1,75 @@
+package com.conveyal.data.geobuf;
+
+import com.google.common.io.Files;
+import com.google.protobuf.CodedInputStream;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Test cutting vector tiles from geobuf.
+ */
+public class GeobufTilerTest extends TestCase {
+    @Test
+    public void testTiling () throws Exception {
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = new WKTReader().read("MULTIPOLYGON (((5.48 52.73, 5.60 52.73, 5.60 52.80, 5.48 52.80, 5.48 52.73), (5.52 52.75, 5.56 52.75, 5.56 52.77, 5.52 52.77, 5.52 52.75)))");
+        feat.properties = new HashMap<>();
+        feat.properties.put("name", "Noordoostpolder");
+        feat.numericId = 42;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new GeobufEncoder(baos, 6).writeFeatureCollection(Arrays.asList(feat));
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+
+        File directory = Files.createTempDir();
+        GeobufTiler tiler = new GeobufTiler("polygons", 0, 10);
+        int count;
+        try (GeobufTiler.TileSink sink = new GeobufTiler.DirectoryTileSink(directory)) {
+            count = tiler.tile(decoder, sink);
+        }
+
+        // the feature is small enough to land in a single tile at low zooms
+        assertTrue(count >= 11);
+
+        File z0 = new File(directory, "0/0/0.mvt");
+        assertTrue(z0.exists());
+
+        // z10 tile containing the polygon
+        assertTrue(new File(directory, "10/527/334.mvt").exists());
+
+        // read back the layer name
+        CodedInputStream tile = CodedInputStream.newInstance(Files.toByteArray(z0));
+        assertEquals(3, tile.readTag() >>> 3);
+        CodedInputStream layer = CodedInputStream.newInstance(tile.readBytes().toByteArray());
+
+        String name = null;
+        int features = 0;
+        for (int tag = layer.readTag(); tag != 0; tag = layer.readTag()) {
+            if (tag >>> 3 == 1) name = layer.readString();
+            else if (tag >>> 3 == 2) {
+                features++;
+                layer.skipField(tag);
+            }
+            else layer.skipField(tag);
+        }
+
+        assertEquals("polygons", name);
+        assertEquals(1, features);
+    }
+
+    /** MBTiles 1.3 requires the json metadata row to list the vector layers */
+    @Test
+    public void testMBTilesVectorLayers () {
+        assertEquals("{\"vector_layers\":[{\"id\":\"polygons\",\"fields\":{}}]}",
+                GeobufTiler.MBTilesTileSink.vectorLayers("polygons"));
+        assertEquals("{\"vector_layers\":[{\"id\":\"a\\\"b\\u000a\",\"fields\":{}},{\"id\":\"c\",\"fields\":{}}]}",
+                GeobufTiler.MBTilesTileSink.vectorLayers("a\"b\n", "c"));
+    }
+}
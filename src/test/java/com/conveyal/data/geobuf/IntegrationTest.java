@@ -1,6 +1,11 @@
 package com.conveyal.data.geobuf;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.CoordinateArraySequence;
+import org.locationtech.jts.geom.impl.CoordinateArraySequenceFactory;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
 import org.locationtech.jts.io.WKTReader;
 import org.locationtech.jts.io.WKTWriter;
 import junit.framework.TestCase;
@@ -8,8 +13,16 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An integration test of our GeoBuf library.
@@ -78,6 +91,273 @@ public class IntegrationTest extends TestCase {
         }
     }
 
+    /** make sure the smallest lossless precision is detected, and that coordinates are rounded rather than truncated */
+    @Test
+    public void testPrecisionDetection () throws Exception {
+        WKTReader rdr = new WKTReader();
+
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = rdr.read("MULTIPOLYGON (((-73.985 40.758, -73.984 40.758, -73.984 40.759, -73.985 40.758)))");
+        feat.properties = new HashMap<>();
+
+        assertEquals(3, GeobufEncoder.detectPrecision(Arrays.asList(feat), GeobufEncoder.MAX_PRECISION));
+        // capped
+        assertEquals(2, GeobufEncoder.detectPrecision(Arrays.asList(feat), 2));
+
+        GeobufFeature feat2 = new GeobufFeature();
+        feat2.geometry = rdr.read("POINT (5.123456 52.000001)");
+        feat2.properties = new HashMap<>();
+
+        assertEquals(6, GeobufEncoder.detectPrecision(Arrays.asList(feat, feat2), GeobufEncoder.MAX_PRECISION));
+
+        // -73.985 * 1000 is slightly less than -73985 in floating point, make sure it survives
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GeobufEncoder encoder = GeobufEncoder.withDetectedPrecision(baos, Arrays.asList(feat));
+        assertEquals(3, encoder.precision);
+        encoder.writeFeatureCollection(Arrays.asList(feat));
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+        GeobufFeature decoded = decoder.next();
+        Coordinate[] expected = feat.geometry.getCoordinates();
+        Coordinate[] actual = decoded.geometry.getCoordinates();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].x, actual[i].x, 1e-9);
+            assertEquals(expected[i].y, actual[i].y, 1e-9);
+        }
+    }
+
+    /** make sure Z values survive the round trip */
+    @Test
+    public void testThreeDimensions () throws Exception {
+        WKTReader rdr = new WKTReader();
+
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = rdr.read("MULTIPOLYGON (((-73.985 40.758 12.5, -73.984 40.758 13, -73.984 40.759 14.25, -73.985 40.758 12.5)))");
+        feat.properties = new HashMap<>();
+
+        GeobufFeature feat2 = new GeobufFeature();
+        feat2.geometry = rdr.read("POINT (5.123456 52.000001)");
+        feat2.properties = new HashMap<>();
+
+        assertEquals(2, GeobufEncoder.detectDimensions(Arrays.asList(feat2)));
+        assertEquals(3, GeobufEncoder.detectDimensions(Arrays.asList(feat, feat2)));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GeobufEncoder encoder = new GeobufEncoder(baos, 6);
+        encoder.writeFeatureCollection(Arrays.asList(feat, feat2));
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+        GeobufFeature decoded = decoder.next();
+        Coordinate[] expected = feat.geometry.getCoordinates();
+        Coordinate[] actual = decoded.geometry.getCoordinates();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].x, actual[i].x, 1e-9);
+            assertEquals(expected[i].y, actual[i].y, 1e-9);
+            assertEquals(expected[i].getZ(), actual[i].getZ(), 1e-9);
+        }
+
+        // points without Z get a zero elevation in a 3D file
+        GeobufFeature decoded2 = decoder.next();
+        assertTrue(decoded2.geometry instanceof Point);
+        assertEquals(5.123456, decoded2.geometry.getCoordinate().x, 1e-9);
+        assertEquals(0, decoded2.geometry.getCoordinate().getZ(), 1e-9);
+    }
+
+    /** keys in a schema are written first and in order, and missing or null properties are omitted */
+    @Test
+    public void testSchema () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i, i));
+            feat.properties = new HashMap<>();
+            feat.properties.put("zone", "zone " + i);
+            feat.properties.put("jobs", i * 10);
+            if (i != 3) feat.properties.put("workers", i * 2.5);
+            else feat.properties.put("workers", null);
+            if (i == 7) feat.properties.put("extra", true);
+            features.add(feat);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GeobufEncoder encoder = new GeobufEncoder(baos, 6);
+        encoder.setSchema(Arrays.asList("zone", "workers", "jobs"));
+        encoder.writeFeatureCollection(features);
+
+        // keys are written in schema order, followed by keys not in the schema
+        GeobufCursor cursor = new GeobufCursor(ByteBuffer.wrap(baos.toByteArray()));
+        assertTrue(cursor.next());
+        assertEquals(Arrays.asList("zone", "workers", "jobs", "extra"), cursor.getKeys());
+        assertEquals("zone", cursor.view().getPropertyKey(0));
+        assertEquals("jobs", cursor.view().getPropertyKey(2));
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+        for (int i = 0; i < 10; i++) {
+            GeobufFeature feat = decoder.next();
+            assertEquals("zone " + i, feat.properties.get("zone"));
+            assertEquals((long) i * 10, feat.properties.get("jobs"));
+            assertEquals(i != 3, feat.properties.containsKey("workers"));
+            if (i != 3) assertEquals(i * 2.5, feat.properties.get("workers"));
+            assertEquals(i == 7, feat.properties.containsKey("extra"));
+        }
+        assertFalse(decoder.hasNext());
+
+        assertEquals(Arrays.asList("jobs", "workers", "zone"), GeobufEncoder.inferSchema(features.get(0)));
+    }
+
+    @Test
+    public void testGeometryFactory () throws Exception {
+        WKTReader rdr = new WKTReader();
+
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = rdr.read("POLYGON ((-122.4194 37.7749, -122.4184 37.7749, -122.4184 37.7759, -122.4194 37.7749))");
+        feat.properties = new HashMap<>();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new GeobufEncoder(baos, 6).writeFeatureCollection(Arrays.asList(feat));
+
+        GeometryFactory factory = new GeometryFactory(new PrecisionModel(100), 4326, CoordinateArraySequenceFactory.instance());
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()), factory);
+        Geometry decoded = decoder.next().geometry;
+
+        assertSame(factory, decoded.getFactory());
+        assertEquals(4326, decoded.getSRID());
+        assertTrue(((Polygon) decoded).getExteriorRing().getCoordinateSequence() instanceof CoordinateArraySequence);
+        assertEquals(-122.42, decoded.getCoordinate().x, 1e-9);
+        assertEquals(37.77, decoded.getCoordinate().y, 1e-9);
+
+        factory = new GeometryFactory(PackedCoordinateSequenceFactory.FLOAT_FACTORY);
+        decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()), factory);
+        decoded = decoder.next().geometry;
+        assertTrue(((Polygon) decoded).getExteriorRing().getCoordinateSequence() instanceof PackedCoordinateSequence.Float);
+        assertEquals(-122.4194, decoded.getCoordinate().x, 1e-4);
+    }
+
+    @Test
+    public void testAsyncReader () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPolygon(new Coordinate[] {
+                    new Coordinate(i, 0), new Coordinate(i + 1, 0), new Coordinate(i + 1, 1), new Coordinate(i, 0)
+            });
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        File file = File.createTempFile("async", ".geobuf");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        // small chunks, batches and queue so that reads, batches and backpressure all come into play
+        ExecutorService workers = Executors.newFixedThreadPool(3);
+        try (AsyncGeobufReader reader = new AsyncGeobufReader(file, workers, 100, 7, 2, null)) {
+            int count = 0;
+            while (reader.hasNext()) {
+                GeobufFeature feat = reader.next();
+                assertEquals(count, feat.numericId);
+                assertEquals((long) count, feat.properties.get("index"));
+                assertTrue(features.get(count).geometry.equalsExact(feat.geometry, 1e-6));
+                count++;
+            }
+            assertEquals(1000, count);
+        }
+
+        // closing early stops the reader
+        AsyncGeobufReader reader = new AsyncGeobufReader(file, workers, 100, 7, 2, null);
+        assertEquals(0, reader.next().numericId);
+        reader.close();
+        assertFalse(reader.hasNext());
+
+        workers.shutdown();
+        assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /** make sure size limits apply to individual features rather than the whole file */
+    @Test
+    public void testSizeLimits () throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i / 100d, i / 50d));
+            feat.properties = new HashMap<>();
+            feat.properties.put("name", "feature " + i);
+            feat.numericId = i;
+            features.add(feat);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new GeobufEncoder(baos, 6).writeFeatureCollection(features);
+        byte[] bytes = baos.toByteArray();
+
+        int sizeLimit = 1024;
+        assertTrue(bytes.length > sizeLimit * 10);
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(bytes), sizeLimit, GeobufDecoder.DEFAULT_RECURSION_LIMIT);
+        int count = 0;
+        while (decoder.hasNext()) {
+            GeobufFeature feat = decoder.next();
+            assertEquals(count, feat.numericId);
+            assertEquals("feature " + count, feat.properties.get("name"));
+            count++;
+        }
+        assertEquals(5000, count);
+
+        // a single feature larger than the limit should fail
+        GeobufFeature big = new GeobufFeature();
+        big.geometry = gf.createPoint(new Coordinate(0, 0));
+        big.properties = new HashMap<>();
+        big.properties.put("big", new String(new char[sizeLimit * 10]).replace('\0', 'x'));
+        baos = new ByteArrayOutputStream();
+        new GeobufEncoder(baos, 6).writeFeatureCollection(Arrays.asList(big));
+
+        try {
+            new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()), sizeLimit, GeobufDecoder.DEFAULT_RECURSION_LIMIT);
+            fail("Feature larger than size limit was decoded");
+        } catch (InvalidProtocolBufferException e) {
+            // expected
+        }
+    }
+
+    /** make sure metrics are recorded when a registry is bound */
+    @Test
+    public void testMetrics () throws Exception {
+        GeobufFeature feat = new GeobufFeature();
+        feat.geometry = new WKTReader().read("MULTIPOLYGON (((0 0, 1 0, 1 1, 0 1, 0 0)))");
+        feat.properties = new HashMap<>();
+        feat.properties.put("unsupported", new Object());
+
+        GeobufMetrics.SimpleRegistry registry = new GeobufMetrics.SimpleRegistry();
+        GeobufMetrics.bind(registry);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new GeobufEncoder(baos, 6).writeFeatureCollection(Arrays.asList(feat, feat));
+            GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+            while (decoder.hasNext()) decoder.next();
+
+            assertEquals(2, registry.getCount(GeobufMetrics.ENCODE_FEATURES));
+            assertEquals(10, registry.getCount(GeobufMetrics.ENCODE_VERTICES));
+            assertEquals(2, registry.getCount(GeobufMetrics.ENCODE_TOSTRING_FALLBACKS));
+            assertEquals(baos.size(), registry.getCount(GeobufMetrics.ENCODE_BYTES));
+            assertEquals(2, registry.getCount(GeobufMetrics.DECODE_FEATURES));
+            assertEquals(10, registry.getCount(GeobufMetrics.DECODE_VERTICES));
+            assertEquals(2, registry.getHistogram(GeobufMetrics.ENCODE_GEOMETRY_NANOS + ".MultiPolygon").count());
+            assertEquals(2, registry.getHistogram(GeobufMetrics.DECODE_GEOMETRY_NANOS + ".MultiPolygon").count());
+        } finally {
+            GeobufMetrics.unbind();
+        }
+
+        // nothing recorded once unbound
+        new GeobufEncoder(new ByteArrayOutputStream(), 6).writeFeatureCollection(Arrays.asList(feat));
+        assertEquals(2, registry.getCount(GeobufMetrics.ENCODE_FEATURES));
+    }
+
     public static void ringsEqual (LineString expected, LineString actual) {
         assertEquals(expected.getNumPoints(), actual.getNumPoints());
 
@@ -91,4 +91,46 @@ public class MapDBTest extends TestCase {
             }
         }
     }
+
+    /** make sure the cache returns decoded features and evicts by vertex count */
+    @Test
+    public void testCache () throws Exception {
+        WKTReader rdr = new WKTReader();
+
+        File directory = Files.createTempDir();
+        DB db = DBMaker.fileDB(new File(directory, "cache.db")).make();
+        Map<String, GeobufFeature> map = db.treeMapCreate("map")
+                .valueSerializer(new GeobufEncoder.GeobufFeatureSerializer(12))
+                .make();
+
+        for (int i = 0; i < 10; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            // 5 vertices each
+            feat.geometry = rdr.read("MULTIPOLYGON (((0 0, " + i + " 0, " + i + " 1, 0 1, 0 0)))");
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            map.put("feat" + i, feat);
+        }
+
+        // room for four features
+        GeobufFeatureCache<String> cache = new GeobufFeatureCache<>(map, 20);
+
+        GeobufFeature feat = cache.get("feat3");
+        assertEquals(3, ((Number) feat.properties.get("index")).intValue());
+        assertEquals(1, cache.stats().missCount());
+
+        // modifying the returned feature should not affect the cache
+        feat.properties.put("index", 42);
+        assertEquals(3, ((Number) cache.get("feat3").properties.get("index")).intValue());
+        assertEquals(1, cache.stats().hitCount());
+
+        assertNull(cache.get("nonexistent"));
+
+        for (int i = 0; i < 10; i++) cache.get("feat" + i);
+        assertTrue(cache.stats().evictionCount() > 0);
+        assertTrue(cache.size() <= 4);
+
+        db.commit();
+        db.close();
+    }
 }
@@ -0,0 +1,63 @@
+package com.conveyal.data.geobuf;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test writing and reading sharded geobufs.
+ */
+public class ShardedGeobufTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testShards () throws Exception {
+        File directory = Files.createTempDir();
+
+        try (ShardedGeobufWriter writer = new ShardedGeobufWriter(directory, "points", 6, 2, Long.MAX_VALUE, 10)) {
+            for (int i = 0; i < 25; i++) {
+                GeobufFeature feat = new GeobufFeature();
+                feat.geometry = gf.createPoint(new Coordinate(i, i / 2d));
+                feat.properties = new HashMap<>();
+                feat.properties.put("index", i);
+                // only some features have this key, make sure keys are tracked per shard
+                if (i % 7 == 0) feat.properties.put("sevens", "yes");
+                feat.numericId = i;
+                writer.add(feat);
+            }
+        }
+
+        ShardedGeobufReader reader = new ShardedGeobufReader(new File(directory, "points" + ShardedGeobufWriter.MANIFEST_SUFFIX));
+        assertEquals(3, reader.shards.size());
+        assertEquals(25, reader.size());
+        assertEquals(10, reader.shards.get(0).featureCount);
+        assertEquals(5, reader.shards.get(2).featureCount);
+        assertEquals(new Envelope(0, 9, 0, 4.5), reader.shards.get(0).envelope);
+
+        int count = 0;
+        for (GeobufFeature feat : reader) {
+            assertEquals(count, feat.numericId);
+            assertEquals((long) count, feat.properties.get("index"));
+            assertEquals(count % 7 == 0 ? "yes" : null, feat.properties.get("sevens"));
+            count++;
+        }
+        assertEquals(25, count);
+
+        // spans the first and second shards
+        List<GeobufFeature> matches = reader.query(new Envelope(8, 11, 0, 10));
+        Set<Long> ids = new HashSet<>();
+        for (GeobufFeature feat : matches) ids.add(feat.numericId);
+        assertEquals(4, ids.size());
+        assertTrue(ids.contains(8L));
+        assertTrue(ids.contains(11L));
+    }
+}
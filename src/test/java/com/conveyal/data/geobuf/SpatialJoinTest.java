@@ -0,0 +1,94 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test joining points to the polygons that contain them.
+ */
+public class SpatialJoinTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testJoin () throws Exception {
+        List<GeobufFeature> polygons = TestFeatures.unitSquares(gf, 20, 20);
+        for (GeobufFeature feat : polygons) {
+            Coordinate corner = feat.geometry.getCoordinate();
+            feat.properties.put("geoid", (int) corner.x + "-" + (int) corner.y);
+            feat.properties.put("name", "block");
+        }
+
+        // points inside the grid, and some outside it
+        Random random = new Random(42);
+        List<GeobufFeature> points = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            double x = i % 10 == 0 ? 25 + random.nextDouble() : 0.01 + random.nextDouble() * 19.98;
+            feat.geometry = gf.createPoint(new Coordinate(x, 0.01 + random.nextDouble() * 19.98));
+            feat.properties = new HashMap<>();
+            feat.properties.put("name", "origin");
+            feat.numericId = i;
+            points.add(feat);
+        }
+
+        File polygonFile = File.createTempFile("polygons", ".geobuf");
+        polygonFile.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(polygonFile)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(polygons);
+        }
+
+        File pointFile = File.createTempFile("points", ".geobuf");
+        pointFile.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(pointFile)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(points);
+        }
+
+        File output = File.createTempFile("joined", ".geobuf");
+        output.deleteOnExit();
+
+        SpatialJoin.Result result = SpatialJoin.join(pointFile, polygonFile, output, "block_", true, 3);
+        assertEquals(20000, result.points);
+        assertEquals(18000, result.matched);
+        assertTrue(result.pointsPerSecond() > 0);
+
+        GeobufDecoder decoder = new GeobufDecoder(new FileInputStream(output));
+        for (int i = 0; i < 20000; i++) {
+            GeobufFeature feat = decoder.next();
+            // in input order
+            assertEquals(i, feat.numericId);
+            assertEquals("origin", feat.properties.get("name"));
+
+            Coordinate coord = feat.geometry.getCoordinate();
+            if (i % 10 == 0) {
+                assertFalse(feat.properties.containsKey("block_geoid"));
+            } else {
+                assertEquals((int) coord.x + "-" + (int) coord.y, feat.properties.get("block_geoid"));
+                assertEquals("block", feat.properties.get("block_name"));
+            }
+        }
+        assertFalse(decoder.hasNext());
+
+        // drop points outside all polygons; without a prefix, polygon properties do not overwrite the point's own
+        result = SpatialJoin.join(pointFile, polygonFile, output, "", false, 2);
+        assertEquals(18000, result.matched);
+        decoder = new GeobufDecoder(new FileInputStream(output));
+        int count = 0;
+        while (decoder.hasNext()) {
+            GeobufFeature feat = decoder.next();
+            assertEquals("origin", feat.properties.get("name"));
+            assertTrue(feat.properties.containsKey("geoid"));
+            count++;
+        }
+        assertEquals(18000, count);
+    }
+}
@@ -0,0 +1,82 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test spatial queries against a layer loaded from a geobuf.
+ */
+public class SpatialLayerTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testSpatialLayer () throws Exception {
+        List<GeobufFeature> features = TestFeatures.unitSquares(gf, 50, 50);
+
+        File file = File.createTempFile("layer", ".geobuf");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 6).writeFeatureCollection(features);
+        }
+
+        SpatialLayer layer = SpatialLayer.load(file);
+        assertEquals(2500, layer.size());
+
+        List<GeobufFeature> hits = layer.contains(12.5, 30.5);
+        assertEquals(1, hits.size());
+        assertEquals(12 * 50 + 30, hits.get(0).numericId);
+
+        // points on shared edges are not contained in either square
+        assertTrue(layer.contains(12, 30.5).isEmpty());
+        assertNull(layer.containing(-1, -1));
+
+        assertEquals(4, layer.intersects(gf.createPoint(new Coordinate(10, 10))).size());
+        // three squares along the diagonal, and four that it touches at their corners
+        assertEquals(7, layer.intersects(gf.createLineString(new Coordinate[] {
+                new Coordinate(0.5, 0.5), new Coordinate(2.5, 2.5) })).size());
+
+        assertEquals(49 * 50 + 49, layer.nearest(60, 60).numericId);
+        assertEquals(7 * 50, layer.nearest(7.5, -3).numericId);
+
+        // nearest matches a brute force search, inside and around the grid
+        Random random = new Random(47);
+        for (int i = 0; i < 200; i++) {
+            Point point = gf.createPoint(new Coordinate(random.nextDouble() * 80 - 15, random.nextDouble() * 80 - 15));
+            double expected = features.stream().mapToDouble(f -> f.geometry.distance(point)).min().getAsDouble();
+            assertEquals(expected, layer.nearest(point.getX(), point.getY()).geometry.distance(point), 1e-9);
+        }
+
+        // concurrent queries, which also prepare geometries concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    int errors = 0;
+                    for (int x = 0; x < 50; x++) {
+                        for (int y = 0; y < 50; y++) {
+                            GeobufFeature feat = layer.containing(x + 0.5, y + 0.5);
+                            if (feat == null || feat.numericId != x * 50 + y) errors++;
+                        }
+                    }
+                    return errors;
+                }));
+            }
+            for (Future<Integer> result : results) assertEquals(0, (int) result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
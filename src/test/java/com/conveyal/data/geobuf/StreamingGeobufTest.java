@@ -0,0 +1,166 @@
+package com.conveyal.data.geobuf;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test streaming encoding and the reactive-streams adapters.
+ */
+public class StreamingGeobufTest extends TestCase {
+    private final GeometryFactory gf = new GeometryFactory();
+
+    private List<GeobufFeature> makeFeatures (int n) {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            GeobufFeature feat = new GeobufFeature();
+            feat.geometry = gf.createPoint(new Coordinate(i / 100d, i / 50d));
+            feat.properties = new HashMap<>();
+            feat.properties.put("index", i);
+            // keys that only appear in later fragments
+            if (i >= 25) feat.properties.put("late", "feature " + i);
+            feat.numericId = i;
+            features.add(feat);
+        }
+        return features;
+    }
+
+    @Test
+    public void testStreamingWriter () throws Exception {
+        List<GeobufFeature> features = makeFeatures(95);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (StreamingGeobufWriter writer = new StreamingGeobufWriter(baos, 6, 2, 10)) {
+            writer.addAll(features);
+        }
+
+        // the fragments decode as a single feature collection, with one keys table
+        GeobufCursor cursor = new GeobufCursor(ByteBuffer.wrap(baos.toByteArray()));
+        while (cursor.next());
+        assertEquals(2, cursor.getKeys().size());
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray()));
+        int count = 0;
+        while (decoder.hasNext()) {
+            GeobufFeature feat = decoder.next();
+            assertEquals(count, feat.numericId);
+            assertEquals((long) count, feat.properties.get("index"));
+            assertEquals(count >= 25 ? "feature " + count : null, feat.properties.get("late"));
+            count++;
+        }
+        assertEquals(95, count);
+
+        // an empty stream is still a valid feature collection
+        baos = new ByteArrayOutputStream();
+        new StreamingGeobufWriter(baos, 6).close();
+        assertFalse(new GeobufDecoder(new ByteArrayInputStream(baos.toByteArray())).hasNext());
+    }
+
+    @Test
+    public void testAppend () throws Exception {
+        List<GeobufFeature> features = makeFeatures(20);
+        File file = File.createTempFile("append", ".geobuf");
+        file.deleteOnExit();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            new GeobufEncoder(fos, 7).writeFeatureCollection(features);
+        }
+
+        byte[] original = Files.readAllBytes(file.toPath());
+
+        // appended features share existing keys and add a new one
+        List<GeobufFeature> appended = makeFeatures(40).subList(20, 40);
+        for (GeobufFeature feat : appended) feat.properties.put("appended", true);
+
+        try (StreamingGeobufWriter writer = StreamingGeobufWriter.append(file, 8)) {
+            writer.addAll(appended);
+        }
+
+        // only the new keys are written
+        GeobufCursor cursor = GeobufCursor.open(file);
+        while (cursor.next());
+        assertEquals(3, cursor.getKeys().size());
+        assertEquals("index", cursor.getKeys().get(0));
+
+        // the original bytes are untouched
+        byte[] after = Files.readAllBytes(file.toPath());
+        assertTrue(after.length > original.length);
+        assertTrue(Arrays.equals(original, Arrays.copyOf(after, original.length)));
+
+        GeobufDecoder decoder = new GeobufDecoder(new FileInputStream(file));
+        for (int i = 0; i < 40; i++) {
+            GeobufFeature feat = decoder.next();
+            assertEquals(i, feat.numericId);
+            assertEquals((long) i, feat.properties.get("index"));
+            assertEquals(i >= 20 ? Boolean.TRUE : null, feat.properties.get("appended"));
+            // precision of the original file is kept
+            assertEquals(i / 100d, feat.geometry.getCoordinate().x, 1e-9);
+        }
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void testFlow () throws Exception {
+        List<GeobufFeature> features = makeFeatures(1000);
+
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        new GeobufEncoder(original, 6).writeFeatureCollection(features);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // decode, and re-encode through the streaming writer
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        GeobufPublisher publisher =
+                new GeobufPublisher(new GeobufDecoder(new ByteArrayInputStream(original.toByteArray())), executor);
+        GeobufSubscriber subscriber = new GeobufSubscriber(new StreamingGeobufWriter(copy, 6, 2, 64), 16);
+        publisher.subscribe(subscriber);
+        assertEquals(1000L, (long) subscriber.getResult().get(10, TimeUnit.SECONDS));
+
+        GeobufDecoder decoder = new GeobufDecoder(new ByteArrayInputStream(copy.toByteArray()));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, decoder.next().numericId);
+        }
+        assertFalse(decoder.hasNext());
+
+        // nothing is delivered beyond what is requested, and cancelling stops the stream
+        List<GeobufFeature> received = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        publisher = new GeobufPublisher(new GeobufDecoder(new ByteArrayInputStream(original.toByteArray())), executor);
+        publisher.subscribe(new Flow.Subscriber<GeobufFeature>() {
+            @Override public void onSubscribe (Flow.Subscription s) { subscription[0] = s; }
+            @Override public void onNext (GeobufFeature item) { received.add(item); }
+            @Override public void onError (Throwable throwable) { fail(); }
+            @Override public void onComplete () { fail(); }
+        });
+
+        subscription[0].request(5);
+        subscription[0].request(2);
+        executor.submit(() -> {}).get();
+        assertEquals(7, received.size());
+        assertEquals(6, received.get(6).numericId);
+
+        subscription[0].cancel();
+        subscription[0].request(5);
+        executor.submit(() -> {}).get();
+        assertEquals(7, received.size());
+
+        executor.shutdown();
+    }
+}
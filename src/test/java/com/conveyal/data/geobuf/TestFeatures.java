@@ -0,0 +1,45 @@
+package com.conveyal.data.geobuf;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fixtures shared between tests.
+ */
+final class TestFeatures {
+    private TestFeatures () {}
+
+    /** @return a closed ring from pairs of coordinates */
+    static LinearRing ring (GeometryFactory gf, double... coords) {
+        Coordinate[] ring = new Coordinate[coords.length / 2 + 1];
+        for (int i = 0; i < coords.length / 2; i++) ring[i] = new Coordinate(coords[i * 2], coords[i * 2 + 1]);
+        ring[ring.length - 1] = ring[0];
+        return gf.createLinearRing(ring);
+    }
+
+    /**
+     * @return a width x height grid of unit squares with their lower left corners at integer coordinates from the
+     * origin, with no properties and numeric ID x * height + y
+     */
+    static List<GeobufFeature> unitSquares (GeometryFactory gf, int width, int height) {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                GeobufFeature feat = new GeobufFeature();
+                feat.geometry = gf.createPolygon(new Coordinate[] {
+                        new Coordinate(x, y), new Coordinate(x + 1, y), new Coordinate(x + 1, y + 1),
+                        new Coordinate(x, y + 1), new Coordinate(x, y)
+                });
+                feat.properties = new HashMap<>();
+                feat.numericId = x * height + y;
+                features.add(feat);
+            }
+        }
+        return features;
+    }
+}